@@ -0,0 +1,183 @@
+package com.jetbrains.typofixer.search
+
+import com.jetbrains.typofixer.search.index.CombinedIndex
+import com.jetbrains.typofixer.search.signature.SignatureRange
+import com.jetbrains.typofixer.settings.TypoFixerStatistics
+
+/**
+ * Chooses which index buckets are read during one search and in which order.
+ *
+ * Buckets of every group of signatures are planned only when the group is first read, i.e. in the order of min possible error.
+ * Global index is probed once per signature for all the global types.
+ * Empty buckets are skipped, most of them by occupancy bitmaps without lookups (see [mayHaveBucket]).
+ * Buckets of smaller min possible error are planned first, within a group they are read from the smallest one,
+ * so that the candidates budget covers as many buckets as possible.
+ * Group of exact matches is always read whole. In the other groups the bucket crossing the remaining budget is read partially,
+ * the ones after it are skipped.
+ * A planner may be shared by searches with growing max errors, every signature is planned by the first of them only.
+ * Every search gets its own budget. The unread tails of the buckets it has cut or skipped are planned by the next search,
+ * so are the buckets it has read after too far words were dropped (see [readAgainFromCurrentWord]).
+ */
+class ProbePlanner(
+        private val index: CombinedIndex,
+        // order in types matters
+        private val types: List<CombinedIndex.IndexType>,
+        candidatesBudget: Int
+) {
+    // global probe if type is null, limit words of the bucket starting from offset are read
+    private class Probe(
+            val type: CombinedIndex.IndexType?,
+            val signature: Int,
+            val size: Int,
+            val offset: Int = 0,
+            val limit: Int = size - offset
+    ) {
+        val key get() = type to signature
+        val wordsLeft get() = size - offset
+
+        fun tailFrom(position: Int) = Probe(type, signature, size, position)
+    }
+
+    private val localTypes = types.filter { it.isLocal() }
+    private val globalTypes = types.filter { it.isGlobal() }
+
+    // found word types by masks of global types, a word of several types is found once for each distinct found word type
+    private val foundWordTypesByMask = Array(1 shl CombinedIndex.IndexType.values().size) { mask ->
+        globalTypes.filter { it.mask and mask != 0 }.map { FoundWordType.getByIndexType(it) }.distinct()
+    }
+
+    // signatures planned by the previous calls, possibly for other ranges
+    private val plannedSignatures = HashSet<Int>()
+
+    // parts of the buckets of planned signatures which are to be read by the next search
+    private val tails = HashMap<Pair<CombinedIndex.IndexType?, Int>, Probe>()
+
+    // bucket which is being read and position of the word which is being read in it, null if no bucket is being read
+    private var currentProbe: Probe? = null
+    private var currentPosition = 0
+    // all the buckets read after that are read again by the next search
+    private var isReadAgainFromCurrentWord = false
+
+    // pruned signatures of the last range which are already counted as empty buckets
+    private var lastRange: SignatureRange? = null
+    private var prunedCountReported = 0
+
+    var candidatesBudgetLeft = candidatesBudget
+        private set
+    var isBudgetExhausted = false
+        private set
+
+    // called before the next search starts planning
+    fun startNextSearch(candidatesBudget: Int) {
+        candidatesBudgetLeft = candidatesBudget
+        isBudgetExhausted = false
+        isReadAgainFromCurrentWord = false
+    }
+
+    // the word which is being read and the rest of the words read by this search are read again by the next one
+    fun readAgainFromCurrentWord() {
+        if (isReadAgainFromCurrentWord) return
+        val probe = currentProbe ?: throw IllegalStateException("No bucket is being read")
+        isReadAgainFromCurrentWord = true
+        addTail(probe.tailFrom(currentPosition))
+    }
+
+    // words which are not read from buckets (e.g. carried over from the previous search) can't be read again
+    val isReadingBucket get() = currentProbe != null
+
+    fun onBucketLeft() {
+        currentProbe = null
+    }
+
+    // false if none of the types has a bucket for the signature, ranges are pruned by it while they are built
+    fun mayHaveBucket(signature: Int) =
+            localTypes.any { index.mayContain(it, signature) } || globalTypes.isNotEmpty() && index.mayContainGlobal(signature)
+
+    // signatures of the range with given min possible error
+    fun candidates(range: SignatureRange, error: Int): Iterator<FoundWord> = LazyIterator {
+        plan(range, error).asSequence().flatMap { read(it) }.iterator()
+    }
+
+    private fun read(probe: Probe): Sequence<FoundWord> {
+        if (isReadAgainFromCurrentWord) addTail(probe)
+        val words: Sequence<Pair<String, List<FoundWordType>>> =
+                if (probe.type != null) {
+                    val types = listOf(FoundWordType.getByIndexType(probe.type))
+                    index.getAll(probe.type, probe.signature).map { it to types }
+                } else {
+                    index.getAllGlobal(globalTypes, probe.signature).map { (word, mask) -> word to foundWordTypesByMask[mask] }
+                }
+        return words.drop(probe.offset).take(probe.limit).withIndex().flatMap { (position, wordWithTypes) ->
+            currentProbe = probe
+            currentPosition = probe.offset + position
+            wordWithTypes.second.asSequence().map { FoundWord(wordWithTypes.first, it) }
+        }
+    }
+
+    // a tail which overlaps the given one is extended
+    private fun addTail(tail: Probe) {
+        val existing = tails[tail.key]
+        if (existing == null || existing.offset > tail.offset) tails[tail.key] = tail
+    }
+
+    private fun plan(range: SignatureRange, error: Int): List<Probe> {
+        val probes = ArrayList<Probe>()
+        var emptyBucketsCount = 0
+        fun addProbe(type: CombinedIndex.IndexType?, signature: Int, size: Int) {
+            if (size == 0) ++emptyBucketsCount
+            else probes.add(Probe(type, signature, size))
+        }
+
+        range.forEach(error) { signature ->
+            if (!plannedSignatures.add(signature)) {
+                for (type in localTypes) tails.remove(type to signature)?.let { probes.add(it) }
+                tails.remove(null to signature)?.let { probes.add(it) }
+                return@forEach
+            }
+            for (type in localTypes) {
+                addProbe(type, signature, if (index.mayContain(type, signature)) index.getBucketSize(type, signature) else 0)
+            }
+            if (globalTypes.isNotEmpty()) {
+                addProbe(null, signature, if (index.mayContainGlobal(signature)) index.getGlobalBucketSize(globalTypes, signature) else 0)
+            }
+        }
+        // every pruned signature is an empty bucket of each probe it would have
+        val probesPerSignature = localTypes.size + if (globalTypes.isNotEmpty()) 1 else 0
+        if (range !== lastRange) {
+            lastRange = range
+            prunedCountReported = 0
+        }
+        emptyBucketsCount += (range.prunedCount - prunedCountReported) * probesPerSignature
+        prunedCountReported = range.prunedCount
+        probes.sortBy { it.wordsLeft }
+
+        val planned = ArrayList<Probe>(probes.size)
+        var isCut = false
+        for (probe in probes) {
+            when {
+                error == 0 || probe.wordsLeft <= candidatesBudgetLeft -> planned.add(probe)
+                candidatesBudgetLeft > 0 -> {
+                    planned.add(Probe(probe.type, probe.signature, probe.size, probe.offset, candidatesBudgetLeft))
+                    addTail(probe.tailFrom(probe.offset + candidatesBudgetLeft))
+                    isCut = true
+                }
+                else -> addTail(probe)
+            }
+            candidatesBudgetLeft = Math.max(0, candidatesBudgetLeft - probe.wordsLeft)
+        }
+
+        val skippedBecauseOfBudgetCount = probes.size - planned.size
+        TypoFixerStatistics.onBucketsPlanned(planned.size, emptyBucketsCount, skippedBecauseOfBudgetCount)
+        if ((isCut || skippedBecauseOfBudgetCount > 0) && !isBudgetExhausted) {
+            isBudgetExhausted = true
+            TypoFixerStatistics.onCandidatesBudgetExhausted()
+        }
+        return planned
+    }
+
+    private class LazyIterator<out T>(create: () -> Iterator<T>) : Iterator<T> {
+        private val iterator by lazy(create)
+        override fun hasNext() = iterator.hasNext()
+        override fun next() = iterator.next()
+    }
+}
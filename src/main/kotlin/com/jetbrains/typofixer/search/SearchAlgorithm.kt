@@ -1,9 +1,10 @@
 package com.jetbrains.typofixer.search
 
-import com.jetbrains.typofixer.ResolveCancelledException
 import com.jetbrains.typofixer.search.distance.DamerauLevenshteinDistance
 import com.jetbrains.typofixer.search.index.CombinedIndex
-import com.jetbrains.typofixer.search.index.GlobalInnerIndex
+import com.jetbrains.typofixer.search.signature.SignatureRange
+import com.jetbrains.typofixer.settings.TypoFixerSettings
+import com.jetbrains.typofixer.settings.TypoFixerStatistics
 import org.jetbrains.annotations.TestOnly
 
 /**
@@ -15,13 +16,30 @@ abstract class SearchAlgorithm(
         val distance: DamerauLevenshteinDistance,
         protected val index: CombinedIndex
 ) {
-    protected val sorter = Sorter(distance)
+    protected val sorter = Sorter()
 
-    protected abstract fun getSignatures(str: String): List<Set<Int>>
+    // signatures without buckets may be pruned from the range by mayHaveBucket
+    protected abstract fun getSignatures(str: String, mayHaveBucket: (signature: Int) -> Boolean = { true }): SignatureRange
+
+    // range is read lazily by the search result, so it isn't shared between searches
+    protected fun getRange(str: String, maxRoundedError: Int, mayHaveBucket: (signature: Int) -> Boolean) =
+            SignatureRange(mayHaveBucket).also { index.signature.getRange(str, maxRoundedError, it) }
 
     // todo: Sorted
     // order in wordTypes matters
-    abstract fun find(str: String, types: List<CombinedIndex.IndexType>, checkTime: () -> Unit): SortedSearchResults
+    abstract fun find(
+            str: String,
+            types: List<CombinedIndex.IndexType>,
+            checkTime: () -> Unit,
+            escalate: ((SortedSearchResults) -> SortedSearchResults?)? = null
+    ): SortedSearchResults
+
+    // continues previous search of the same string with smaller max error
+    // it is run when the results are read, after find time is over, so it isn't time checked
+    abstract fun findFurther(
+            previous: SortedSearchResults,
+            escalate: ((SortedSearchResults) -> SortedSearchResults?)? = null
+    ): SortedSearchResults
 
     @TestOnly
     abstract fun findAll(str: String): Sequence<String>
@@ -33,36 +51,60 @@ abstract class DLSearchAlgorithmBase(
         index: CombinedIndex
 ) : SearchAlgorithm(maxRoundedError, DamerauLevenshteinDistance(maxRoundedError), index) {
 
-    private fun getFromIndex(str: String, types: List<CombinedIndex.IndexType>, checkTime: () -> Unit) =
-            getSignatures(str)
-                    .map { signatures ->
-                        try {
-                            checkTime()
-                            types.asSequence().flatMap { type ->
-                                index.getAll(type, signatures).map { FoundWord(it, FoundWordType.getByIndexType(type)) }
-                            }
-                        } catch (e: GlobalInnerIndex.TriedToAccessIndexWhileItIsRefreshing) {
-                            throw ResolveCancelledException()
-                        }
-                    }
-                    .mapIndexed { index, it -> index to it.iterator() }
-                    .toMap()
-
-    // todo: candidates count
-    override fun find(str: String, types: List<CombinedIndex.IndexType>, checkTime: () -> Unit) =
-            SortedSearchResults(str, maxRoundedError, getFromIndex(str, types, checkTime), distance, sorter)
+    private fun getFromIndex(str: String, planner: ProbePlanner, checkTime: () -> Unit): Map<Int, Iterator<FoundWord>> {
+        val range = getSignatures(str) { planner.mayHaveBucket(it) }
+        return (0..range.maxRoundedError).associate { error ->
+            checkTime()
+            error to planner.candidates(range, error)
+        }
+    }
+
+    // types which are not ready yet are skipped and reported with the results
+    override fun find(
+            str: String,
+            types: List<CombinedIndex.IndexType>,
+            checkTime: () -> Unit,
+            escalate: ((SortedSearchResults) -> SortedSearchResults?)?
+    ): SortedSearchResults {
+        val readyTypes = types.filter { index.isReady(it) }
+        val missingTypes = types - readyTypes
+        if (missingTypes.isNotEmpty()) TypoFixerStatistics.onSearchedWithTypesMissing()
+        val progress = SearchProgress(ProbePlanner(index, readyTypes, TypoFixerSettings.getInstance().maxCandidatesForFind))
+        val wordsByMinPossibleError = getFromIndex(str, progress.planner, checkTime)
+        val maxResultsCount = TypoFixerSettings.getInstance().maxResultsForFind
+        return SortedSearchResults(str, maxRoundedError, wordsByMinPossibleError, distance, sorter, maxResultsCount, missingTypes, progress, escalate)
+    }
+
+    // buckets read by the previous search are not read again, the ones it has cut or skipped are read by this one with its own budget,
+    // words it has found too far are measured once more
+    override fun findFurther(
+            previous: SortedSearchResults,
+            escalate: ((SortedSearchResults) -> SortedSearchResults?)?
+    ): SortedSearchResults {
+        assert(previous.maxRoundedError < maxRoundedError)
+        val progress = previous.progress
+        progress.planner.startNextSearch(TypoFixerSettings.getInstance().maxCandidatesForFind)
+        val wordsByMinPossibleError = getFromIndex(previous.base, progress.planner, {}).toMutableMap()
+        val tooFarWords = progress.takeTooFarWords()
+        val tooFarError = previous.maxRoundedError + 1
+        wordsByMinPossibleError[tooFarError] = (tooFarWords + wordsByMinPossibleError[tooFarError]!!.asSequence()).iterator()
+        val maxResultsCount = TypoFixerSettings.getInstance().maxResultsForFind
+        return SortedSearchResults(previous.base, maxRoundedError, wordsByMinPossibleError, distance, sorter, maxResultsCount,
+                previous.missingTypes, progress, escalate, isContinuation = true)
+    }
 
     @TestOnly
     override fun findAll(str: String): Sequence<String> {
-        return index.getAltogether(getSignatures(str).flatten().toSet()).filter { distance.roundedMeasure(str, it) <= maxRoundedError }
+        val compiledDistance = distance.compile(str)
+        return index.getAltogether(getSignatures(str).toSets().flatten().toSet()).filter { compiledDistance.roundedMeasure(it) <= maxRoundedError }
     }
 }
 
 class DLSearchAlgorithm(maxRoundedError: Int, index: CombinedIndex) : DLSearchAlgorithmBase(maxRoundedError, index) {
-    override fun getSignatures(str: String) = index.signature.getRange(str, maxRoundedError)
+    override fun getSignatures(str: String, mayHaveBucket: (signature: Int) -> Boolean) = getRange(str, maxRoundedError, mayHaveBucket)
 }
 
 class DLPreciseSearchAlgorithm(maxRoundedError: Int, index: CombinedIndex) : DLSearchAlgorithmBase(maxRoundedError, index) {
     // todo: optimize precise
-    override fun getSignatures(str: String) = index.signature.getRange(str, 2 * maxRoundedError + 1)
+    override fun getSignatures(str: String, mayHaveBucket: (signature: Int) -> Boolean) = getRange(str, 2 * maxRoundedError + 1, mayHaveBucket)
 }
\ No newline at end of file
@@ -2,65 +2,299 @@ package com.jetbrains.typofixer.search
 
 import com.jetbrains.typofixer.search.distance.Distance
 import com.jetbrains.typofixer.search.index.CombinedIndex
+import com.jetbrains.typofixer.settings.TypoFixerStatistics
 
 
 class SortedSearchResults(
-        private val base: String,
-        private val maxRoundedError: Int,
+        val base: String,
+        val maxRoundedError: Int,
         wordsByMinPossibleError: Map<Int, Iterator<FoundWord>>,
-        private val distanceProvider: Distance,
-        private val sorter: Sorter
+        distanceProvider: Distance,
+        sorter: Sorter,
+        // only this many best words are kept, the worse ones are dropped
+        maxResultsCount: Int,
+        // types which were not searched as they were not ready yet
+        val missingTypes: List<CombinedIndex.IndexType>,
+        // shared by the searches of one find
+        val progress: SearchProgress,
+        // search with bigger max error which continues this one, it is run only when all the results of this one are read
+        // null if there is no such search, escalate itself returns null if it is decided not to run it
+        private val escalate: ((SortedSearchResults) -> SortedSearchResults?)? = null,
+        // continuation may read words again, the ones returned by the previous searches are skipped
+        isContinuation: Boolean = false
 ) {
     private var isValid = true
-    private val unsortedResult = SearchResults(maxRoundedError, wordsByMinPossibleError, { distanceProvider.roundedMeasure(base, it) })
+    // base is compiled once and used during the whole search
+    private val distance = distanceProvider.compile(base)
+    private val prefilter = Prefilter { !distance.isSurelyTooFar(it) }
+    // too far words are needed only by the search continuing this one
+    private val unsortedResult = SearchResults(maxRoundedError, wordsByMinPossibleError, prefilter, { distance.measure(it) }, sorter, maxResultsCount,
+            if (escalate != null) progress else null, if (isContinuation) progress.getReturnedWords() else null)
 
+    // every word is measured once. words are taken from the heap one by one, only when they are requested
     private fun wordsForRoundedError(error: Int): Sequence<FoundWord> {
         assert(error <= maxRoundedError)
         assert(error >= 0)
-        unsortedResult.refillMap(error)
-        val nextWords = unsortedResult.wordsByMeasure[error] ?: return emptySequence()
-        return sorter.sort(nextWords.asSequence(), base)
+        unsortedResult.refill(error)
+        prefilter.report(TypoFixerStatistics::onCandidatesPrefiltered)
+        val words = generateSequence { unsortedResult.pollWithRoundedErrorAtMost(error) }
+        return if (escalate != null) words.onEach { progress.onReturned(it) } else words
     }
 
     fun asSequence(): Sequence<FoundWord> {
         if (!isValid) throw IllegalStateException("Search result read twice")
-        val result = (0..maxRoundedError).asSequence().flatMap { wordsForRoundedError(it) }
+        val escalated = Sequence { escalate?.invoke(this)?.asSequence()?.iterator() ?: emptySequence<FoundWord>().iterator() }
+        val result = (0..maxRoundedError).asSequence().flatMap { wordsForRoundedError(it) } + escalated
         isValid = false
         return result
     }
 }
 
+// what the searches of one find have done so far. a search with bigger max error continues from it:
+// buckets fully read by the previous searches are not read again, so the words found in them are either returned already or too far.
+// parts of buckets which are read again (see ProbePlanner) may have returned words, those are skipped
+class SearchProgress(val planner: ProbePlanner) {
+    // candidates of the last search which were farther than its max error
+    private var tooFarWords = ArrayList<FoundWord>()
+    // words returned by the searches which are continued
+    private val returnedWords = HashSet<FoundWord>()
+
+    // over the limit, words read from buckets are not kept, the planner reads them again for the next search instead.
+    // words carried over from the previous search are kept anyway, their count is within its limit already
+    fun onTooFar(word: FoundWord) {
+        if (tooFarWords.size < MAX_TOO_FAR_WORDS_COUNT || !planner.isReadingBucket) tooFarWords.add(word)
+        else planner.readAgainFromCurrentWord()
+    }
+
+    fun onReturned(word: FoundWord) {
+        returnedWords.add(word)
+    }
+
+    // a copy, so that the next search may add the words it has seen
+    fun getReturnedWords(): MutableSet<FoundWord> = HashSet(returnedWords)
+
+    // too far words are measured once more by the next search only
+    fun takeTooFarWords(): Sequence<FoundWord> {
+        val words = tooFarWords
+        tooFarWords = ArrayList()
+        return words.asSequence().onEach { planner.onBucketLeft() }
+    }
+
+    companion object {
+        private val MAX_TOO_FAR_WORDS_COUNT = 1000
+    }
+}
+
+// cheap stage which is run before the exact measure. counts candidates it has eliminated
+class Prefilter(private val mayBeAcceptable: (String) -> Boolean) {
+    var candidatesChecked = 0
+        private set
+    var candidatesRejected = 0
+        private set
+
+    private var checkedReported = 0
+    private var rejectedReported = 0
+
+    fun accepts(word: String): Boolean {
+        ++candidatesChecked
+        if (mayBeAcceptable(word)) return true
+        ++candidatesRejected
+        return false
+    }
+
+    // reports counters increments since the previous call
+    fun report(doReport: (checked: Int, rejected: Int) -> Unit) {
+        if (candidatesChecked == checkedReported) return
+        doReport(candidatesChecked - checkedReported, candidatesRejected - rejectedReported)
+        checkedReported = candidatesChecked
+        rejectedReported = candidatesRejected
+    }
+}
+
 private class SearchResults(
         private val maxRoundedError: Int,
         private val wordsByMinPossibleError: Map<Int, Iterator<FoundWord>>,
-        private val measure: (String) -> Int
+        private val prefilter: Prefilter,
+        private val measure: (String) -> Double,
+        sorter: Sorter,
+        maxResultsCount: Int,
+        // null if too far words are not collected
+        private val progress: SearchProgress?,
+        // null if words are not deduplicated, otherwise words which are already seen are skipped
+        private val seenWords: MutableSet<FoundWord>?
 ) {
-    var wordsByMeasure: Map<Int, Iterator<FoundWord>> = emptyMap()
+    private val measuredWords = FoundWordsHeap(sorter, maxResultsCount)
+
+    private fun round(error: Double) = Math.round(error).toInt()
 
-    fun refillMap(minPossibleError: Int) {
-        val additionalWords: HashMap<Int, MutableList<FoundWord>> = hashMapOf()
+    // after refill(minPossibleError) all words with rounded error <= minPossibleError are measured
+    fun refill(minPossibleError: Int) {
         wordsByMinPossibleError.keys.filter { it <= minPossibleError }.sorted().forEach { index ->
             val nextWords = wordsByMinPossibleError[index]!!
             while (nextWords.hasNext()) {
                 val nextWord = nextWords.next()
+                if (seenWords != null && !seenWords.add(nextWord)) continue
+                if (!prefilter.accepts(nextWord.word)) {
+                    progress?.onTooFar(nextWord)
+                    continue
+                }
                 val nextError = measure(nextWord.word)
-                if (nextError > maxRoundedError) continue
-                if (additionalWords[nextError] == null) {
-                    additionalWords[nextError] = mutableListOf()
+                if (round(nextError) > maxRoundedError) {
+                    progress?.onTooFar(nextWord)
+                    continue
                 }
-                additionalWords[nextError]!!.add(nextWord)
+                measuredWords.add(nextWord, nextError)
             }
         }
-        val newKeys = wordsByMeasure.keys.toSet() + additionalWords.keys
+    }
+
+    fun pollWithRoundedErrorAtMost(error: Int): FoundWord? =
+            if (!measuredWords.isEmpty() && round(measuredWords.peekDistance()) <= error) measuredWords.poll()
+            else null
+}
+
+// bounded min-max heap ordered by sorter, the best word is polled, the worst one is dropped when the heap is full.
+// measured distances are stored alongside the words.
+// words equal for sorter are polled in the order they were added, so results don't depend on the heap layout
+private class FoundWordsHeap(private val sorter: Sorter, private val maxSize: Int) {
+    private var words = arrayOfNulls<FoundWord>(Math.min(INITIAL_CAPACITY, maxSize))
+    private var distances = DoubleArray(words.size)
+    private var sequenceNumbers = LongArray(words.size)
+    private var size = 0
+    private var nextSequenceNumber = 0L
+
+    companion object {
+        private const val INITIAL_CAPACITY = 64
+    }
+
+    init {
+        assert(maxSize > 0)
+    }
+
+    fun isEmpty() = size == 0
+
+    fun peekDistance(): Double {
+        if (isEmpty()) throw NoSuchElementException()
+        return distances[0]
+    }
+
+    // if the heap is full, the worst of the words is dropped, possibly the given one
+    fun add(word: FoundWord, distance: Double) {
+        if (size == maxSize) {
+            val worst = maxIndex()
+            if (sorter.compare(distance, word.type, distances[worst], words[worst]!!.type) >= 0) return
+            removeAt(worst)
+        }
+        if (size == words.size) {
+            val capacity = Math.min(2 * size, maxSize)
+            words = words.copyOf(capacity)
+            distances = distances.copyOf(capacity)
+            sequenceNumbers = sequenceNumbers.copyOf(capacity)
+        }
+        words[size] = word
+        distances[size] = distance
+        sequenceNumbers[size] = nextSequenceNumber++
+        bubbleUp(size++)
+    }
+
+    fun poll(): FoundWord {
+        if (isEmpty()) throw NoSuchElementException()
+        val result = words[0]!!
+        removeAt(0)
+        return result
+    }
+
+    private fun removeAt(index: Int) {
+        --size
+        if (index != size) {
+            move(size, index)
+            words[size] = null
+            trickleDown(index)
+        } else {
+            words[size] = null
+        }
+    }
+
+    // root is on a min level, its children are on a max level
+    private fun maxIndex() = when (size) {
+        1 -> 0
+        2 -> 1
+        else -> if (less(1, 2)) 2 else 1
+    }
+
+    // strict, words equal for sorter are ordered by sequence numbers
+    private fun less(i: Int, j: Int): Boolean {
+        val comparison = sorter.compare(distances[i], words[i]!!.type, distances[j], words[j]!!.type)
+        return comparison < 0 || comparison == 0 && sequenceNumbers[i] < sequenceNumbers[j]
+    }
+
+    // whether the word is nearer to the top of its level kind than the other one: less on min levels, greater on max levels
+    private fun before(i: Int, j: Int, isMinLevel: Boolean) = if (isMinLevel) less(i, j) else less(j, i)
 
-        fun getOldWords(error: Int) = wordsByMeasure[error]?.asSequence() ?: emptySequence()
-        fun getAdditionalWords(error: Int) = additionalWords[error]?.asSequence() ?: emptySequence()
+    private fun isMinLevel(index: Int) = (31 - Integer.numberOfLeadingZeros(index + 1)) % 2 == 0
 
-        wordsByMeasure = newKeys.map { it to (getOldWords(it) + getAdditionalWords(it)).iterator() }.toMap()
+    private fun parent(index: Int) = (index - 1) / 2
+
+    private fun move(from: Int, to: Int) {
+        words[to] = words[from]
+        distances[to] = distances[from]
+        sequenceNumbers[to] = sequenceNumbers[from]
+    }
+
+    private fun swap(i: Int, j: Int) {
+        val word = words[i]
+        val distance = distances[i]
+        val sequenceNumber = sequenceNumbers[i]
+        move(j, i)
+        words[j] = word
+        distances[j] = distance
+        sequenceNumbers[j] = sequenceNumber
+    }
+
+    private fun bubbleUp(index: Int) {
+        if (index == 0) return
+        var current = index
+        var isMinLevel = isMinLevel(current)
+        val parent = parent(current)
+        // a word which belongs to the levels of the other kind goes to the parent
+        if (before(parent, current, isMinLevel)) {
+            swap(current, parent)
+            current = parent
+            isMinLevel = !isMinLevel
+        }
+        while (current > 2) {
+            val grandparent = parent(parent(current))
+            if (!before(current, grandparent, isMinLevel)) return
+            swap(current, grandparent)
+            current = grandparent
+        }
+    }
+
+    private fun trickleDown(index: Int) {
+        var current = index
+        val isMinLevel = isMinLevel(current)
+        while (true) {
+            // the top one among children and grandchildren
+            val firstChild = 2 * current + 1
+            if (firstChild >= size) return
+            var top = firstChild
+            if (firstChild + 1 < size && before(firstChild + 1, top, isMinLevel)) top = firstChild + 1
+            val firstGrandchild = 2 * firstChild + 1
+            for (grandchild in firstGrandchild until Math.min(firstGrandchild + 4, size)) {
+                if (before(grandchild, top, isMinLevel)) top = grandchild
+            }
+            if (!before(top, current, isMinLevel)) return
+            swap(top, current)
+            if (top < firstGrandchild) return
+            // grandchild has moved down, it may belong to the level of its parent now
+            val parent = parent(top)
+            if (before(parent, top, isMinLevel)) swap(top, parent)
+            current = top
+        }
     }
 }
 
-class FoundWord(val word: String, val type: FoundWordType)
+data class FoundWord(val word: String, val type: FoundWordType)
 
 enum class FoundWordType {
     IDENTIFIER_NOT_CLASS, IDENTIFIER_CLASS, KEYWORD;
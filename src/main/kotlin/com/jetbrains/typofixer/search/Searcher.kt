@@ -1,6 +1,7 @@
 package com.jetbrains.typofixer.search
 
 import com.intellij.ProjectTopics
+import com.intellij.openapi.Disposable
 import com.intellij.openapi.application.ApplicationManager
 import com.intellij.openapi.fileEditor.FileEditorManager
 import com.intellij.openapi.fileEditor.FileEditorManagerEvent
@@ -9,12 +10,17 @@ import com.intellij.openapi.project.DumbService
 import com.intellij.openapi.project.Project
 import com.intellij.openapi.roots.ModuleRootEvent
 import com.intellij.openapi.roots.ModuleRootListener
+import com.intellij.openapi.startup.StartupManager
+import com.intellij.openapi.util.Disposer
 import com.intellij.openapi.vfs.VirtualFile
 import com.intellij.psi.PsiFile
 import com.intellij.psi.util.PsiModificationTracker
 import com.jetbrains.typofixer.search.distance.Distance
 import com.jetbrains.typofixer.search.index.CombinedIndex
+import com.jetbrains.typofixer.search.index.GlobalIndexStorage
 import com.jetbrains.typofixer.search.signature.ComplexSignature
+import com.jetbrains.typofixer.settings.TypoFixerSettings
+import com.jetbrains.typofixer.settings.TypoFixerStatistics
 import org.jetbrains.annotations.TestOnly
 
 /**
@@ -39,7 +45,18 @@ abstract class Searcher {
     // internal use only
     abstract fun getStatus(): Status
 
-    abstract fun getStatistics(): Pair<Int, Int>
+    // global refreshing counters include updates, coalesced requests are the ones merged into another pending one
+    class Statistics(
+            val indexSize: Int,
+            val timesGlobalRefreshRequested: Int,
+            val timesGlobalRefreshExecuted: Int,
+            val timesGlobalRefreshCoalesced: Int
+    )
+
+    abstract fun getStatistics(): Statistics
+
+    // internal use only, types which are not searched as their names are still being collected
+    abstract fun getMissingIndexTypes(): List<CombinedIndex.IndexType>
 
     @TestOnly abstract fun findAll(str: String, psiFile: PsiFile?, precise: Boolean): Map<Double, List<String>>
     @TestOnly abstract fun getIndex(): CombinedIndex
@@ -63,13 +80,28 @@ open class DLSearcher(final override val project: Project) : Searcher() {
         // 12: distance is Double (misclicked shift and swap costs lowered)
         // 13: lazy search returning multiple results
         // 14: distance between keys
-        val VERSION = 14
+        // 15: unified global index stored on disk
+        // 16: global index split into project and library shards
+        val VERSION = 16
+
+        private val MAX_ROUNDED_ERROR = 2
+        private val MAX_ROUNDED_ERROR_OF_LONG_WORDS = 3
+        private val CHARS_PER_ERROR = 4
+
+        // max rounded errors of the search tiers for a word of given length, every next tier allows one more mistake.
+        // the first tier is the usual search, long words get more tiers with a mistake per CHARS_PER_ERROR chars
+        fun getErrorTiers(length: Int): List<Int> {
+            val lastTierError = Math.max(MAX_ROUNDED_ERROR, Math.min(MAX_ROUNDED_ERROR_OF_LONG_WORDS, length / CHARS_PER_ERROR))
+            return (MAX_ROUNDED_ERROR..lastTierError).toList()
+        }
     }
 
-    private val maxRoundedError = 2
+    private val maxRoundedError = MAX_ROUNDED_ERROR
     private val signature = ComplexSignature()
 
-    private val index = CombinedIndex(project, signature)
+    // stored index would make tests depend on each other
+    private val storage = if (ApplicationManager.getApplication().isUnitTestMode) null else GlobalIndexStorage(project, VERSION)
+    private val index = CombinedIndex(project, signature, storage)
 
     private var lastPsiModificationCount = 0L
     private fun freshPsiModificationCount() = PsiModificationTracker.SERVICE.getInstance(project).outOfCodeBlockModificationCount
@@ -78,15 +110,26 @@ open class DLSearcher(final override val project: Project) : Searcher() {
     private val preciseSearch = DLPreciseSearchAlgorithm(maxRoundedError, index)
     private fun getSearch(precise: Boolean) = if (precise) preciseSearch else simpleSearch
 
+    // simple searches by max rounded error
+    private val tierSearches = (MAX_ROUNDED_ERROR..MAX_ROUNDED_ERROR_OF_LONG_WORDS).associate {
+        it to if (it == maxRoundedError) simpleSearch else DLSearchAlgorithm(it, index)
+    }
+
     override val distanceProvider = simpleSearch.distance
 
     init {
+        StartupManager.getInstance(project).runWhenProjectIsInitialized {
+            ApplicationManager.getApplication().executeOnPooledThread { index.loadStoredGlobal() }
+        }
+
+        Disposer.register(project, Disposable { index.dispose() })
+
         val connection = project.messageBus.connect(project)
 
         DumbService.getInstance(project).smartInvokeLater {
             connection.subscribe(ProjectTopics.PROJECT_ROOTS, object : ModuleRootListener {
                 override fun rootsChanged(event: ModuleRootEvent) {
-                    updateIndex()
+                    refreshIndex()
                 }
             })
 
@@ -108,26 +151,55 @@ open class DLSearcher(final override val project: Project) : Searcher() {
     override fun find(file: PsiFile?, str: String, indexTypes: List<CombinedIndex.IndexType>, checkTime: () -> Unit): SortedSearchResults {
         // todo: checkTime into refreshLocal?
         index.refreshLocal(file)
-        return getSearch(false).find(str, indexTypes, checkTime)
+        return findInTiers(str, indexTypes, checkTime)
     }
 
     override fun findAmongKeywords(str: String, keywords: Set<String>, checkTime: () -> Unit): SortedSearchResults {
         // todo: checkTime into refreshLocal?
         index.refreshLocalWithKeywords(keywords)
-        return getSearch(false).find(str, listOf(CombinedIndex.IndexType.KEYWORD), checkTime)
+        return findInTiers(str, listOf(CombinedIndex.IndexType.KEYWORD), checkTime)
+    }
+
+    // the next tier is searched only if nothing found by the previous one is accepted and escalation time isn't over yet
+    // results are read after find has returned, so escalation has its own deadline instead of the find time checker,
+    // running out of it just leaves the results as they are. escalated search is bounded by the candidates budget
+    private fun findInTiers(str: String, types: List<CombinedIndex.IndexType>, checkTime: () -> Unit): SortedSearchResults {
+        val searches = getErrorTiers(str.length).map { tierSearches[it]!! }
+        val escalationDeadline = System.currentTimeMillis() + TypoFixerSettings.getInstance().maxMillisForEscalation
+        fun escalation(tier: Int): ((SortedSearchResults) -> SortedSearchResults?)? =
+                if (tier + 1 == searches.size) null
+                else { previous ->
+                    if (System.currentTimeMillis() < escalationDeadline) {
+                        TypoFixerStatistics.onSearchEscalated()
+                        searches[tier + 1].findFurther(previous, escalation(tier + 1))
+                    } else null
+                }
+        return searches[0].find(str, types, checkTime, escalation(0))
     }
 
     private fun updateIndex() {
+        lastPsiModificationCount = freshPsiModificationCount()
+        index.updateGlobal()
+    }
+
+    private fun refreshIndex() {
         lastPsiModificationCount = freshPsiModificationCount()
         index.refreshGlobal()
     }
 
     // internal use only
-    override fun getStatistics(): Pair<Int, Int> {
+    override fun getStatistics(): Statistics {
         assert(ApplicationManager.getApplication().isInternal)
-        return Pair(index.getSize(), index.timesGlobalRefreshRequested)
+        return Statistics(
+                indexSize = index.getSize(),
+                timesGlobalRefreshRequested = index.timesGlobalRefreshRequested,
+                timesGlobalRefreshExecuted = index.timesGlobalRefreshExecuted,
+                timesGlobalRefreshCoalesced = index.timesGlobalRefreshCoalesced
+        )
     }
 
+    override fun getMissingIndexTypes() = CombinedIndex.IndexType.values().filter { !index.isReady(it) }
+
     override fun getStatus() = when {
         DumbService.isDumb(project) -> Status.DUMB_MODE
         index.isUsable() -> Status.ACTIVE
@@ -1,17 +1,11 @@
 package com.jetbrains.typofixer.search
 
-import com.jetbrains.typofixer.search.distance.Distance
 
+class Sorter {
 
-class Sorter(private val distanceProvider: Distance) {
+    // words with smaller distance go first. words with equal distances are ordered by type
+    fun compare(leftDistance: Double, leftType: FoundWordType, rightDistance: Double, rightType: FoundWordType) =
+            if (leftDistance != rightDistance) leftDistance.compareTo(rightDistance)
+            else leftType.compareTo(rightType)
 
-    private fun comparator(base: String) = Comparator<FoundWord> { left: FoundWord, right: FoundWord ->
-        val leftMeasure = distanceProvider.measure(base, left.word)
-        val rightMeasure = distanceProvider.measure(base, right.word)
-        if (leftMeasure != rightMeasure) leftMeasure.compareTo(rightMeasure)
-        else left.type.compareTo(right.type)
-    }
-
-    fun sort(values: Sequence<FoundWord>, base: String) = values.sortedWith(comparator(base))
-
-}
\ No newline at end of file
+}
@@ -1,8 +1,23 @@
 package com.jetbrains.typofixer.search.distance
 
+import java.util.*
+
 interface Distance {
     fun measure(base: String, replacement: String): Double
     fun roundedMeasure(base: String, replacement: String): Int
+
+    // precomputes everything that depends only on base. result is meant to be used during one search
+    fun compile(base: String): CompiledDistance
+}
+
+// not thread safe
+interface CompiledDistance {
+    val base: String
+    fun measure(replacement: String): Double
+    fun roundedMeasure(replacement: String): Int
+
+    // cheap check. if true then roundedMeasure(replacement) is bigger than max rounded error
+    fun isSurelyTooFar(replacement: String): Boolean
 }
 
 class DamerauLevenshteinDistance(private val maxRoundedError: Int) : Distance {
@@ -25,93 +40,160 @@ class DamerauLevenshteinDistance(private val maxRoundedError: Int) : Distance {
                 CHANGE_CASE_PENALTY,
                 ADD_PENALTY
         )
-    }
 
-    private fun charDistance(c1: Char, c2: Char): Double {
-        return with(DEFAULT_KEYBOARD_LAYOUT) {
-            when {
-                c1 isSameKey c2 && c1 isSameCase c2 -> 0.0
-                c1 isSameKey c2 -> CHANGE_CASE_PENALTY
-                c1 isAdjacentKey c2 && c1 isSameCase c2 -> ADJACENT_REPLACE_PENALTY
-                else -> REPLACE_PENALTY
+        private val minPenalty = (penalties + ADJACENT_REPLACE_PENALTY).min()!!
+
+        private fun charDistance(c1: Char, c2: Char): Double {
+            return with(DEFAULT_KEYBOARD_LAYOUT) {
+                when {
+                    c1 isSameKey c2 && c1 isSameCase c2 -> 0.0
+                    c1 isSameKey c2 -> CHANGE_CASE_PENALTY
+                    c1 isAdjacentKey c2 && c1 isSameCase c2 -> ADJACENT_REPLACE_PENALTY
+                    else -> REPLACE_PENALTY
+                }
             }
         }
 
+        private const val COST_TABLE_SIZE = 128
+
+        // COST_ROWS[c1][c2] == charDistance(c1, c2) for all ascii chars
+        private val COST_ROWS by lazy {
+            Array(COST_TABLE_SIZE) { c1 -> DoubleArray(COST_TABLE_SIZE) { c2 -> charDistance(c1.toChar(), c2.toChar()) } }
+        }
+    }
+
+    init {
+        assert(maxRoundedError * (penalties.max()!!) < errorBiggerThanMax)
+    }
+
+    private val gapSize = 2 * maxRoundedError + 1
+
+    // every unit cost operation costs at least minPenalty, so bigger unit cost distance means distance >= errorBiggerThanMax
+    private val maxUnitDistance = generateSequence(0) { it + 1 }.first { (it + 1) * minPenalty >= errorBiggerThanMax }
+
+    // measure is called for every found candidate (possibly from several threads), so columns are reused
+    private val columns = ThreadLocal.withInitial { Columns(gapSize) }
+
+    private class Columns(gapSize: Int) {
+        var beforePrevious = DoubleArray(gapSize)
+            private set
+        var previous = DoubleArray(gapSize)
+            private set
+        var current = DoubleArray(gapSize)
+            private set
+
+        fun shift() {
+            val free = beforePrevious
+            beforePrevious = previous
+            previous = current
+            current = free
+        }
     }
 
+    private fun maxK(baseLength: Int, replacementInd: Int) = Math.min(
+            gapSize - 1,
+            (baseLength - replacementInd) + (maxRoundedError + 1) - 1
+    )
+
     /*
      * returns distance if it is less than errorBiggerThanMax and errorBiggerThanMax otherwise
      */
-    // todo: bigger identifiers should allow more mistakes (?)
-    override fun measure(base: String, replacement: String): Double {
+    // bigger identifiers are allowed more mistakes by searching with bigger max errors (see DLSearcher.getErrorTiers)
+    override fun measure(base: String, replacement: String): Double =
+            doMeasure(base, replacement, columns.get(), { maxK(base.length, it) }, { baseInd, c -> charDistance(base[baseInd], c) })
 
-        assert(maxRoundedError * (penalties.max()!!) < errorBiggerThanMax)
+    override fun compile(base: String): CompiledDistance = CompiledDamerauLevenshteinDistance(base)
+
+    private inner class CompiledDamerauLevenshteinDistance(override val base: String) : CompiledDistance {
+        private val columns = Columns(gapSize)
+
+        // costRows[i][c] == charDistance(base[i], c) for ascii c (null for non ascii base[i])
+        private val costRows = Array(base.length) { if (base[it].toInt() < COST_TABLE_SIZE) COST_ROWS[base[it].toInt()] else null }
+
+        // band bounds for every replacement index
+        private val maxKs = IntArray(base.length + maxRoundedError + 1) { maxK(base.length, it) }
+
+        private val unitDistance = CompiledUnitDistance(base)
+
+        private fun costOf(baseInd: Int, c: Char): Double {
+            val costRow = costRows[baseInd]
+            return if (costRow != null && c.toInt() < COST_TABLE_SIZE) costRow[c.toInt()] else charDistance(base[baseInd], c)
+        }
+
+        override fun measure(replacement: String): Double =
+                doMeasure(base, replacement, columns, { maxKs[it] }, { baseInd, c -> costOf(baseInd, c) })
+
+        override fun roundedMeasure(replacement: String): Int = Math.round(measure(replacement)).toInt()
+
+        override fun isSurelyTooFar(replacement: String) =
+                unitDistance.isApplicable && unitDistance.measure(replacement, maxUnitDistance) > maxUnitDistance
+    }
+
+    private inline fun doMeasure(
+            base: String,
+            replacement: String,
+            columns: Columns,
+            maxK: (replacementInd: Int) -> Int,
+            charDistance: (baseInd: Int, replacementChar: Char) -> Double
+    ): Double {
 
         if (base.isEmpty()) return Math.min(replacement.length * ADD_PENALTY, errorBiggerThanMax)
         if (replacement.isEmpty()) return Math.min(base.length * REMOVE_PENALTY, errorBiggerThanMax)
         if (Math.abs(base.length - replacement.length) > maxRoundedError) return errorBiggerThanMax
 
-        val gapSize = 2 * maxRoundedError + 1
-
         val stepsCount = Math.min(replacement.length, base.length + maxRoundedError)
 
-        fun dynamicallyCalculateDistance(
-                replacementInd: Int,
-                beforePreviousColumn: Array<Double>,
-                previousColumn: Array<Double>
-        ): Double {
-            if (replacementInd == stepsCount + 1) {
-                return Math.min(
-                        previousColumn[maxRoundedError + base.length - replacement.length],
-                        errorBiggerThanMax
-                )
-            }
-            val curr = Array(gapSize) { Double.MAX_VALUE }
+        // column k corresponds to base index (replacementInd - maxRoundedError + k)
+        Arrays.fill(columns.previous, Double.MAX_VALUE)
+        for (k in maxRoundedError until gapSize) {
+            columns.previous[k] = (k - maxRoundedError) * REMOVE_PENALTY
+        }
+
+        for (replacementInd in 1..stepsCount) {
+            val beforePrevious = columns.beforePrevious
+            val previous = columns.previous
+            val curr = columns.current
+            Arrays.fill(curr, Double.MAX_VALUE)
+
             val replacementChar = replacement[replacementInd - 1]
 
             val minK = Math.max(maxRoundedError - replacementInd, 0)
-            val maxK = Math.min(
-                    gapSize - 1,
-                    (base.length - replacementInd) + (maxRoundedError + 1) - 1
-            )
+            val maxK = maxK(replacementInd)
 
             curr[minK] = (replacementInd - maxRoundedError + minK) * REPLACE_PENALTY +
                     (maxRoundedError - minK) * ADD_PENALTY
 
             assert(minK <= maxK)
 
+            var allTooBig = true
             for (k in minK..maxK) {
                 val baseInd = replacementInd - maxRoundedError + k
                 if (baseInd > 0) {
                     val baseChar = base[baseInd - 1]
                     // swap
                     if (replacementInd > 1 && baseInd > 1 && baseChar == replacement[replacementInd - 2] && replacementChar == base[baseInd - 2]) {
-                        curr[k] = Math.min(beforePreviousColumn[k] + SWAP_PENALTY, curr[k])
+                        curr[k] = Math.min(beforePrevious[k] + SWAP_PENALTY, curr[k])
                     }
                     // remove (from base)
                     if (k > 0) {
                         curr[k] = Math.min(curr[k], curr[k - 1] + REMOVE_PENALTY)
                     }
                     // replace
-                    curr[k] = Math.min(curr[k], previousColumn[k] + charDistance(baseChar, replacementChar))
+                    curr[k] = Math.min(curr[k], previous[k] + charDistance(baseInd - 1, replacementChar))
                 }
                 // add (to base)
                 if (k + 1 < gapSize) {
-                    curr[k] = Math.min(curr[k], previousColumn[k + 1] + ADD_PENALTY)
+                    curr[k] = Math.min(curr[k], previous[k + 1] + ADD_PENALTY)
                 }
+                if (curr[k] < errorBiggerThanMax) allTooBig = false
             }
-            if ((minK..maxK).all { curr[it] >= errorBiggerThanMax }) {
+            if (allTooBig) {
                 return errorBiggerThanMax
             }
-            return dynamicallyCalculateDistance(replacementInd + 1, previousColumn, curr)
-        }
-
-        val initialColumn = Array(gapSize) {
-            if (it - maxRoundedError >= 0) (it - maxRoundedError) * REMOVE_PENALTY
-            else Double.MAX_VALUE
+            columns.shift()
         }
 
-        return dynamicallyCalculateDistance(1, Array(gapSize) { Double.MAX_VALUE }, initialColumn)
+        return Math.min(columns.previous[maxRoundedError + base.length - replacement.length], errorBiggerThanMax)
     }
 
     override fun roundedMeasure(base: String, replacement: String): Int = Math.round(measure(base, replacement)).toInt()
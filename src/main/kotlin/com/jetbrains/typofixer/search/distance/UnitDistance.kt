@@ -0,0 +1,86 @@
+package com.jetbrains.typofixer.search.distance
+
+/*
+ * Optimal string alignment distance with unit costs: add, remove, replace and swap of adjacent chars cost 1.
+ * Bit-parallel algorithm (Myers, Hyyrö): base is compiled into per char bit masks once,
+ * after that every measure is one pass over replacement without any allocations.
+ * Bases longer than MAX_BASE_LENGTH chars are not supported (see isApplicable).
+ */
+class CompiledUnitDistance(val base: String) {
+
+    companion object {
+        const val MAX_BASE_LENGTH = 64
+        private const val ASCII_SIZE = 128
+    }
+
+    val isApplicable = base.length <= MAX_BASE_LENGTH
+
+    // bit i of mask(c) is set iff base[i] == c
+    private val asciiMasks = LongArray(ASCII_SIZE)
+    private val nonAsciiChars: CharArray
+    private val nonAsciiMasks: LongArray
+
+    init {
+        val nonAscii = if (isApplicable) base.filter { it.toInt() >= ASCII_SIZE }.toSet().toList() else emptyList()
+        nonAsciiChars = nonAscii.toCharArray()
+        nonAsciiMasks = LongArray(nonAscii.size)
+        if (isApplicable) {
+            base.forEachIndexed { i, c ->
+                val bit = 1L shl i
+                if (c.toInt() < ASCII_SIZE) {
+                    asciiMasks[c.toInt()] = asciiMasks[c.toInt()] or bit
+                } else {
+                    val ind = nonAscii.indexOf(c)
+                    nonAsciiMasks[ind] = nonAsciiMasks[ind] or bit
+                }
+            }
+        }
+    }
+
+    private fun maskOf(c: Char): Long {
+        if (c.toInt() < ASCII_SIZE) return asciiMasks[c.toInt()]
+        for (i in nonAsciiChars.indices) {
+            if (nonAsciiChars[i] == c) return nonAsciiMasks[i]
+        }
+        return 0L
+    }
+
+    // returns exact distance if it is not greater than maxDistance and some bigger value otherwise
+    fun measure(replacement: String, maxDistance: Int): Int {
+        if (!isApplicable) throw IllegalStateException("Base is too long: ${base.length}")
+        if (Math.abs(base.length - replacement.length) > maxDistance) return maxDistance + 1
+        if (base.isEmpty()) return replacement.length
+
+        val lastBit = 1L shl (base.length - 1)
+
+        // vertical deltas of the current column: positive (vp) and negative (vn)
+        var vp = -1L
+        var vn = 0L
+        // diagonal zero deltas of the current column
+        var d0 = 0L
+        var previousMask = 0L
+        var distance = base.length
+
+        for (j in replacement.indices) {
+            val mask = maskOf(replacement[j])
+            val transpositions = ((d0.inv() and mask) shl 1) and previousMask
+            d0 = (((mask and vp) + vp) xor vp) or mask or vn or transpositions
+            var hp = vn or (d0 or vp).inv()
+            var hn = d0 and vp
+            if (hp and lastBit != 0L) {
+                ++distance
+            } else if (hn and lastBit != 0L) {
+                --distance
+            }
+            hp = (hp shl 1) or 1L
+            hn = hn shl 1
+            vp = hn or (d0 or hp).inv()
+            vn = d0 and hp
+            previousMask = mask
+
+            // every remaining char can lower distance by one at most
+            if (distance - (replacement.length - j - 1) > maxDistance) return maxDistance + 1
+        }
+        return distance
+    }
+}
@@ -1,6 +1,7 @@
 package com.jetbrains.typofixer.search.index
 
 
+import com.intellij.openapi.project.DumbService
 import com.intellij.openapi.project.Project
 import com.intellij.psi.PsiFile
 import com.jetbrains.typofixer.search.signature.Signature
@@ -11,7 +12,12 @@ import org.jetbrains.annotations.TestOnly
 /**
  * @author bronti.
  */
-class CombinedIndex(val project: Project, val signature: Signature) {
+class CombinedIndex(
+        val project: Project,
+        val signature: Signature,
+        storage: GlobalIndexStorage?,
+        libraryShardsCache: LibraryShardsCache = LibraryShardsCache.getInstance()
+) {
 
     enum class IndexType {
         KEYWORD,
@@ -23,42 +29,67 @@ class CombinedIndex(val project: Project, val signature: Signature) {
         fun isLocal() = this == KEYWORD || this == LOCAL_IDENTIFIER
         fun isGlobal() = !isLocal()
 
+        // words of global index are marked with masks of their types
+        val mask get() = 1 shl ordinal
+
         companion object {
             fun globalValues() = values().filter(IndexType::isGlobal)
             fun localValues() = values().filter(IndexType::isLocal)
         }
     }
 
-    private val indexByType = HashMap<IndexType, InnerIndex>()
+    private val indexByType = HashMap<IndexType, LocalInnerIndex>()
+
+    // each word is stored once per shard for all global types
+    private val globalIndex = GlobalInnerIndex(project, signature, storage, libraryShardsCache, ProjectNamesTracker(project), ::GlobalNamesCollector)
+
+    // refreshings and updates requested in a row are executed once
+    private val refreshScheduler = GlobalRefreshScheduler(
+            refresh = { if (canRefreshGlobal) globalIndex.refresh() },
+            update = { if (canRefreshGlobal) globalIndex.update() },
+            parentDisposable = project
+    )
 
     init {
         indexByType[IndexType.KEYWORD] = LocalInnerIndex(signature) { collector, element -> collector.keyWords(element) }
         indexByType[IndexType.LOCAL_IDENTIFIER] = LocalInnerIndex(signature) { collector, element -> collector.localIdentifiers(element.containingFile) }
-
-        indexByType[IndexType.CLASSNAME] = GlobalInnerIndex(project, signature, ::ClassNamesCollector)
-        indexByType[IndexType.KOTLIN_SPECIFIC_FIELD] = GlobalInnerIndex(project, signature, ::KotlinGettersSettersCollector)
-        indexByType[IndexType.NOT_CLASSNAME] = GlobalInnerIndex(project, signature, ::AllNamesExceptClassNamesCollector)
     }
 
     private val IndexType.index get() = indexByType[this]!!
 
-    private val indices = IndexType.values().map { it.index }
-    private val globalIndices = IndexType.globalValues().map { it.index as GlobalInnerIndex }
-    private val localIndices = IndexType.localValues().map { it.index as LocalInnerIndex }
+    private val localIndices = IndexType.localValues().map { it.index }
+    private val indices = localIndices + globalIndex
 
     fun getSize() = getLocalSize() + getGlobalSize()
     fun getLocalSize() = localIndices.map { it.getSize() }.sum()
     fun getGlobalSize(): Int {
         return try {
-            globalIndices.map { it.getSize() }.sum()
+            globalIndex.getSize()
         } catch (e: GlobalInnerIndex.TriedToAccessIndexWhileItIsRefreshing) {
             -1
         }
     }
 
-    fun isUsable() = globalIndices.all(GlobalInnerIndex::isUsable)
+    fun isUsable() = globalIndex.isUsable()
+
+    // local types are always ready, global ones become ready one by one during the first refreshing
+    fun isReady(type: IndexType) = type.isLocal() || globalIndex.isReady(type)
 
-    fun getAll(type: IndexType, signatures: Set<Int>) = type.index.getAll(signatures)
+    fun getAll(type: IndexType, signature: Int) =
+            if (type.isLocal()) type.index.getAll(signature)
+            else globalIndex.getAll(signature, listOf(type)).map { it.first }
+
+    fun getBucketSize(type: IndexType, signature: Int) =
+            if (type.isLocal()) type.index.getBucketSize(signature)
+            else globalIndex.getBucketSize(signature, listOf(type))
+
+    // checked before bucket sizes, so that empty buckets are skipped without lookups
+    fun mayContain(type: IndexType, signature: Int) = if (type.isLocal()) type.index.mayContain(signature) else globalIndex.mayContain(signature)
+    fun mayContainGlobal(signature: Int) = globalIndex.mayContain(signature)
+
+    // one probe for all the global types, words come with masks of given types they belong to
+    fun getAllGlobal(types: List<IndexType>, signature: Int) = globalIndex.getAll(signature, types)
+    fun getGlobalBucketSize(types: List<IndexType>, signature: Int) = globalIndex.getBucketSize(signature, types)
 
     // not meant to be called concurrently
     fun refreshLocal(psiFile: PsiFile?) {
@@ -69,18 +100,38 @@ class CombinedIndex(val project: Project, val signature: Signature) {
 
     fun refreshLocalWithKeywords(words: Set<String>) {
         localIndices.forEach(LocalInnerIndex::clear)
-        (IndexType.KEYWORD.index as LocalInnerIndex).refreshWithWords(words)
+        IndexType.KEYWORD.index.refreshWithWords(words)
+    }
+
+    // global index is refreshed in background whether the stored one is loaded or not
+    fun loadStoredGlobal() {
+        globalIndex.loadStored()
+        refreshGlobal()
+    }
+
+    // applies changes of project files, full refreshing is needed only when roots are changed
+    // or when there is no complete generation to apply changes to and none is being built
+    fun updateGlobal() {
+        if (!canRefreshGlobal) return
+        if (!globalIndex.hasCompleteGeneration() && !globalIndex.isRefreshing()) {
+            refreshGlobal()
+            return
+        }
+        refreshScheduler.requestUpdate()
     }
 
     fun refreshGlobal() {
         if (!canRefreshGlobal) return
-        ++timesGlobalRefreshRequested
-        globalIndices.forEach(GlobalInnerIndex::refresh)
+        refreshScheduler.requestRefresh()
     }
 
-    // internal use only
-    var timesGlobalRefreshRequested = 0
-        private set
+    // releases library shards shared with other projects
+    fun dispose() = globalIndex.dispose()
+
+    // internal use only, updates are counted too
+    val timesGlobalRefreshRequested get() = refreshScheduler.timesRequested
+    val timesGlobalRefreshExecuted get() = refreshScheduler.timesExecuted
+    val timesGlobalRefreshCoalesced get() = refreshScheduler.timesCoalesced
 
     // used in tests for temporarily blocking of index refreshing
     var canRefreshGlobal = true
@@ -91,11 +142,19 @@ class CombinedIndex(val project: Project, val signature: Signature) {
     // can be interrupted by dumb mode
     @TestOnly
     fun waitForGlobalRefreshing() {
-        globalIndices.forEach(GlobalInnerIndex::waitForRefreshing)
+        globalIndex.waitForRefreshing()
     }
 
     @TestOnly
-    fun addToIndex(words: List<String>) = (IndexType.LOCAL_IDENTIFIER.index as LocalInnerIndex).addAll(words.toSet())
+    fun waitForGlobalUpdating() {
+        DumbService.getInstance(project).runReadActionInSmartMode { globalIndex.applyChanges(null) }
+    }
+
+    @TestOnly
+    fun getWordPool() = globalIndex.getWordPool()
+
+    @TestOnly
+    fun addToIndex(words: List<String>) = IndexType.LOCAL_IDENTIFIER.index.addAll(words.toSet())
 
     @TestOnly
     fun getAltogether(signatures: Set<Int>) = indices.asSequence().flatMap { it.getAll(signatures) }
@@ -0,0 +1,192 @@
+package com.jetbrains.typofixer.search.index
+
+import com.jetbrains.typofixer.search.signature.Signature
+import java.io.DataOutputStream
+import java.nio.ByteBuffer
+import java.nio.IntBuffer
+import java.util.*
+
+/**
+ * Read-only signature index packed into flat buffers (on heap or memory-mapped).
+ *
+ * Bucket `i` holds words with signature `signatures[i]`:
+ * ids of words in [pool] are stored in `ids` from `bucketStarts[i]` until `bucketStarts[i + 1]`,
+ * `typesMasks` contains index types the words belong to (see [CombinedIndex.IndexType.mask]).
+ * Occupancy bitmap of the signatures is built on creation, so that most of lookups of empty buckets end without search.
+ *
+ * Buckets are not front coded: a word is stored in [pool] once whatever buckets and types refer to it,
+ * and ids keep it readable without decoding its neighbours, while words of a bucket share chars rather than prefixes.
+ */
+class FrozenIndex private constructor(
+        private val pool: WordPool,
+        // sorted
+        private val signatures: IntBuffer,
+        private val bucketStarts: IntBuffer,
+        private val ids: IntBuffer,
+        private val typesMasks: ByteBuffer
+) {
+
+    private val occupancy = OccupancyBitmap(signatures.limit())
+
+    init {
+        (0 until signatures.limit()).forEach { occupancy.add(signatures[it]) }
+    }
+
+    val size get() = ids.limit()
+
+    // including the whole pool, which may be shared with other indices
+    val bytesCount get() = pool.bytesCount + 4L * pool.size + 4L * (2 * signatures.limit() + 1) + 5L * size + occupancy.bytesCount
+
+    fun mayContain(signature: Int) = occupancy.mayContain(signature)
+
+    fun get(signature: Int): Sequence<String> {
+        val bucket = findBucket(signature)
+        if (bucket < 0) return emptySequence()
+        return (bucketStarts[bucket] until bucketStarts[bucket + 1]).asSequence().map { pool.get(ids[it]) }
+    }
+
+    // words with types masks intersected with the given one
+    fun get(signature: Int, typesMask: Int): Sequence<Pair<String, Int>> {
+        val bucket = findBucket(signature)
+        if (bucket < 0) return emptySequence()
+        return (bucketStarts[bucket] until bucketStarts[bucket + 1]).asSequence()
+                .filter { typesMasks[it].toInt() and typesMask != 0 }
+                .map { pool.get(ids[it]) to (typesMasks[it].toInt() and typesMask) }
+    }
+
+    fun getBucketSize(signature: Int): Int {
+        val bucket = findBucket(signature)
+        return if (bucket < 0) 0 else bucketStarts[bucket + 1] - bucketStarts[bucket]
+    }
+
+    fun getBucketSize(signature: Int, typesMask: Int): Int {
+        val bucket = findBucket(signature)
+        if (bucket < 0) return 0
+        return (bucketStarts[bucket] until bucketStarts[bucket + 1]).count { typesMasks[it].toInt() and typesMask != 0 }
+    }
+
+    fun contains(signature: Int, str: String) = get(signature).contains(str)
+
+    fun forEach(action: (signature: Int, word: String, typesMask: Int) -> Unit) {
+        (0 until signatures.limit()).forEach { bucket ->
+            (bucketStarts[bucket] until bucketStarts[bucket + 1]).forEach {
+                action(signatures[bucket], pool.get(ids[it]), typesMasks[it].toInt())
+            }
+        }
+    }
+
+    // words are written along with the index, so ids are renumbered
+    fun writeTo(output: DataOutputStream) {
+        val newIds = IntArray(pool.size) { NO_ID }
+        var wordsCount = 0
+        (0 until size).forEach { if (newIds[ids[it]] == NO_ID) newIds[ids[it]] = wordsCount++ }
+        val oldIds = IntArray(wordsCount)
+        newIds.forEachIndexed { oldId, newId -> if (newId != NO_ID) oldIds[newId] = oldId }
+        pool.writeTo(output, oldIds)
+
+        output.writeInt(signatures.limit())
+        (0 until signatures.limit()).forEach { output.writeInt(signatures[it]) }
+        (0..signatures.limit()).forEach { output.writeInt(bucketStarts[it]) }
+        output.writeInt(size)
+        (0 until size).forEach { output.writeInt(newIds[ids[it]]) }
+        (0 until size).forEach { output.writeByte(typesMasks[it].toInt()) }
+    }
+
+    private fun findBucket(signature: Int): Int {
+        if (!occupancy.mayContain(signature)) return -1
+        var left = 0
+        var right = signatures.limit() - 1
+        while (left <= right) {
+            val middle = (left + right) ushr 1
+            val middleSignature = signatures[middle]
+            when {
+                middleSignature < signature -> left = middle + 1
+                middleSignature > signature -> right = middle - 1
+                else -> return middle
+            }
+        }
+        return -1
+    }
+
+    companion object {
+        private val NO_ID = -1
+
+        val EMPTY = FrozenIndex(WordPool(), IntBuffer.allocate(0), IntBuffer.allocate(1), IntBuffer.allocate(0), ByteBuffer.allocate(0))
+
+        // buckets contain types masks by words, words are interned into pool
+        fun freeze(buckets: Map<Int, Map<String, Int>>, pool: WordPool) = freeze(buckets, pool) { pool.intern(it) }
+
+        // words are interned into pool already, ids of them are given
+        fun freezeInterned(buckets: Map<Int, Map<String, Int>>, pool: WordPool, ids: Map<String, Int>) =
+                freeze(buckets, pool) { words -> IntArray(words.size) { ids[words[it]]!! } }
+
+        private fun freeze(buckets: Map<Int, Map<String, Int>>, pool: WordPool, idsOf: (List<String>) -> IntArray): FrozenIndex {
+            val signatures = buckets.keys.toIntArray()
+            signatures.sort()
+
+            val bucketStarts = IntArray(signatures.size + 1)
+            signatures.forEachIndexed { bucket, signature ->
+                bucketStarts[bucket + 1] = bucketStarts[bucket] + buckets[signature]!!.size
+            }
+            val words = ArrayList<String>(bucketStarts.last())
+            val typesMasks = ByteArray(bucketStarts.last())
+            signatures.forEach { signature ->
+                buckets[signature]!!.forEach { (word, mask) ->
+                    typesMasks[words.size] = mask.toByte()
+                    words.add(word)
+                }
+            }
+            val ids = idsOf(words)
+
+            return FrozenIndex(pool, IntBuffer.wrap(signatures), IntBuffer.wrap(bucketStarts), IntBuffer.wrap(ids), ByteBuffer.wrap(typesMasks))
+        }
+
+        // words are loaded into pool, which must be empty
+        fun readFrom(buffer: ByteBuffer, pool: WordPool): FrozenIndex {
+            pool.readFrom(buffer)
+            val signaturesCount = buffer.int
+            val signatures = buffer.sliceInts(signaturesCount)
+            val bucketStarts = buffer.sliceInts(signaturesCount + 1)
+            val size = buffer.int
+            val ids = buffer.sliceInts(size)
+            val typesMasks = buffer.sliceBytes(size)
+            return FrozenIndex(pool, signatures, bucketStarts, ids, typesMasks)
+        }
+    }
+}
+
+// collects types masks of words by signatures before freezing
+// words are added one by one as they are found, so that no intermediate collections of them are built
+// must be used by one thread at a time
+class BucketsBuilder(private val signature: Signature) {
+    private val buckets = HashMap<Int, HashMap<String, Int>>()
+
+    // count of distinct pairs of signature and word
+    var size = 0
+        private set
+
+    fun add(type: CombinedIndex.IndexType, word: String) = add(signature.get(word), word, type.mask)
+
+    fun add(signature: Int, word: String, typesMask: Int) {
+        val bucket = buckets.getOrPut(signature) { hashMapOf() }
+        val oldMask = bucket[word]
+        if (oldMask == null) ++size
+        bucket[word] = (oldMask ?: 0) or typesMask
+    }
+
+    fun addAll(other: BucketsBuilder) {
+        other.buckets.forEach { (signature, bucket) -> bucket.forEach { (word, mask) -> add(signature, word, mask) } }
+    }
+
+    fun freeze(pool: WordPool) = FrozenIndex.freeze(buckets, pool)
+    fun freezeInterned(pool: WordPool, ids: Map<String, Int>) = FrozenIndex.freezeInterned(buckets, pool, ids)
+
+    companion object {
+        // builders are merged into the biggest one, so they must not be used after that
+        fun merge(builders: List<BucketsBuilder>, signature: Signature): BucketsBuilder {
+            val target = builders.maxBy { it.size } ?: return BucketsBuilder(signature)
+            builders.forEach { if (it !== target) target.addAll(it) }
+            return target
+        }
+    }
+}
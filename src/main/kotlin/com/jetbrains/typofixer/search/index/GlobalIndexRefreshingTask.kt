@@ -1,26 +1,71 @@
 package com.jetbrains.typofixer.search.index
 
+import com.intellij.concurrency.JobLauncher
 import com.intellij.openapi.application.ApplicationManager
+import com.intellij.openapi.progress.ProcessCanceledException
 import com.intellij.openapi.progress.ProgressIndicator
 import com.intellij.openapi.progress.util.ProgressIndicatorUtils
 import com.intellij.openapi.progress.util.ReadTask
 import com.intellij.openapi.project.DumbService
+import com.intellij.openapi.roots.ProjectRootManager
+import com.intellij.openapi.vfs.VirtualFile
 import com.intellij.psi.JavaDirectoryService
 import com.intellij.psi.JavaPsiFacade
+import com.intellij.psi.PsiDirectory
 import com.intellij.psi.search.GlobalSearchScope
 import com.intellij.psi.search.PsiShortNamesCache
+import com.intellij.util.Processor
+import com.intellij.util.indexing.IdFilter
 import com.jetbrains.typofixer.typoFixerComponent
 import org.jetbrains.annotations.TestOnly
+import java.util.concurrent.ConcurrentHashMap
 
 
+// names found by one collecting job: either names for the project shard or a library shard
+class IndexPart private constructor(val projectNames: BucketsBuilder?, val libraryShard: LibraryShard?) {
+    constructor(projectNames: BucketsBuilder) : this(projectNames, null)
+    constructor(libraryShard: LibraryShard) : this(null, libraryShard)
+}
+
 abstract class GlobalIndexRefreshingTaskBase(private val targetIndex: GlobalInnerIndex) : ReadTask() {
 
+    // independent part of collection
+    // a type is ready when all the jobs collecting its names are finished
+    protected class Job(
+            val id: String,
+            val types: List<CombinedIndex.IndexType>,
+            val collect: (indicator: ProgressIndicator?) -> JobResult
+    )
+
+    // only interrupted jobs are run again, the ones with nothing to collect (e.g. with a root which is gone) are finished
+    protected sealed class JobResult {
+        class Collected(val part: IndexPart) : JobResult()
+        object Skipped : JobResult()
+        object Interrupted : JobResult()
+    }
+
+    // jobs are recreated in every read action, as they may refer to psi
+    protected abstract fun createJobs(): List<Job>
+
+    @Volatile
     private var done = false
-        set
-    protected abstract val tasks: List<(indicator: ProgressIndicator?) -> Set<String>>
-    private var currentTask = 0
+
+    // results of finished jobs by their ids, they survive the task restarts, interrupted jobs have none
+    private val results = ConcurrentHashMap<String, JobResult>()
 
     protected val project get() = targetIndex.project
+    protected val signature get() = targetIndex.signature
+    protected val libraryShardsCache get() = targetIndex.libraryShardsCache
+
+    // every job streams names into its own builder, collect returns false if it is interrupted
+    protected fun projectNamesJob(
+            id: String,
+            types: List<CombinedIndex.IndexType>,
+            collect: (BucketsBuilder, ProgressIndicator?) -> Boolean
+    ) = Job(id, types) { indicator ->
+        val builder = BucketsBuilder(signature)
+        if (collect(builder, indicator)) JobResult.Collected(IndexPart(builder)) else JobResult.Interrupted
+    }
 
     private fun isCurrentRefreshingTask() = targetIndex.isCurrentRefreshingTask(this)
 
@@ -35,22 +80,30 @@ abstract class GlobalIndexRefreshingTaskBase(private val targetIndex: GlobalInne
         }
     }
 
+    // jobs are run concurrently under the read action of the calling thread, each one stores its result by its own id,
+    // results are merged into the new generation of target index when all of them are ready, old one is used meanwhile
     private fun performCollection(indicator: ProgressIndicator?) {
-        if (project.isInitialized) {
-            tasks.indices.forEach { taskIndex ->
-                withDoubleCheckedSynchronization({ shouldPerformTask(indicator, taskIndex) }) {
-                    targetIndex.addAll(tasks[taskIndex](indicator))
-                    currentTask++
+        var jobs = emptyList<Job>()
+        if (project.isInitialized && shouldCollect(indicator)) {
+            jobs = createJobs()
+            val pendingJobs = jobs.filter { !results.containsKey(it.id) }
+            JobLauncher.getInstance().invokeConcurrentlyUnderProgress(pendingJobs, indicator, true, Processor { job ->
+                val result = if (shouldCollect(indicator)) job.collect(indicator) else JobResult.Interrupted
+                if (result != JobResult.Interrupted) {
+                    results[job.id] = result
+                    publishReadyTypes(jobs)
                 }
-            }
-        }
-        withDoubleCheckedSynchronization({ shouldCollect(indicator) }) {
-            targetIndex.startEntriesCompression()
+                result != JobResult.Interrupted
+            })
         }
+        val isInterrupted = jobs.any { !results.containsKey(it.id) }
+        val parts = getParts(jobs)
 
         // todo: check that index is refreshing after each stub index refreshment
-        if (DumbService.isDumb(project) || shouldCollect(indicator)) {
-            targetIndex.clearRefreshingTask(this)
+        when {
+            shouldCollect(indicator) && isInterrupted -> throw ProcessCanceledException()
+            shouldCollect(indicator) -> targetIndex.finishRefreshing(this, parts, getReadyTypes(jobs))
+            DumbService.isDumb(project) -> targetIndex.finishRefreshing(this, parts, getReadyTypes(jobs))
         }
 
         if (targetIndex.isUsable()) {
@@ -60,8 +113,19 @@ abstract class GlobalIndexRefreshingTaskBase(private val targetIndex: GlobalInne
         done = true
     }
 
-    private fun shouldPerformTask(indicator: ProgressIndicator?, taskIndex: Int) =
-            currentTask == taskIndex && shouldCollect(indicator)
+    // names of ready types are published before the rest are collected, unless there is a complete generation already
+    // generation with all the types is published by finishRefreshing only
+    private fun publishReadyTypes(jobs: List<Job>) {
+        val readyTypes = getReadyTypes(jobs)
+        if (readyTypes.isEmpty() || readyTypes.size == CombinedIndex.IndexType.globalValues().size) return
+        targetIndex.publishReadyTypes(this, getParts(jobs), readyTypes)
+    }
+
+    private fun getReadyTypes(jobs: List<Job>) = CombinedIndex.IndexType.globalValues().filter { type ->
+        jobs.all { type !in it.types || results.containsKey(it.id) }
+    }
+
+    private fun getParts(jobs: List<Job>) = jobs.mapNotNull { (results[it.id] as? JobResult.Collected)?.part }
 
     // once false -> always false after that
     protected fun shouldCollect(indicator: ProgressIndicator?): Boolean {
@@ -72,76 +136,101 @@ abstract class GlobalIndexRefreshingTaskBase(private val targetIndex: GlobalInne
         return !done
     }
 
-    private fun withDoubleCheckedSynchronization(doCheck: () -> Boolean, doTask: () -> Unit) {
-        if (doCheck()) {
-            synchronized(targetIndex) {
-                if (doCheck()) doTask()
-            }
-        }
-    }
-
     // can be interrupted by dumb mode
     @TestOnly
     fun waitForRefreshing() {
         while (!done) {
-            performCollection(null)
+            try {
+                performCollection(null)
+            } catch (e: ProcessCanceledException) {
+                // some of jobs couldn't start, they are run again
+            }
         }
     }
 }
 
-class KotlinGettersSettersCollector(targetIndex: GlobalInnerIndex) : GlobalIndexRefreshingTaskBase(targetIndex) {
-
-    override val tasks = listOf<(ProgressIndicator?) -> Set<String>>(
-            { extractFieldNamesFromGettersOrSetters() }
-    )
-
-    private fun extractFieldNamesFromGettersOrSetters() =
-            PsiShortNamesCache
-                    .getInstance(project)
-                    .allMethodNames
-                    .filter { it.length >= 4 && it[3].isUpperCase() }
-                    .filter { it.startsWith("get") || it.startsWith("set") }
-                    .map { it[3].toLowerCase() + it.substring(4) }
-                    .toSet()
-}
-
-class ClassNamesCollector(targetIndex: GlobalInnerIndex) : GlobalIndexRefreshingTaskBase(targetIndex) {
-    private val namesCache get() = PsiShortNamesCache.getInstance(project)
-
-    override val tasks = listOf<(indicator: ProgressIndicator?) -> Set<String>>(
-            { namesCache.allClassNames.toSet() }
-    )
-}
-
-class AllNamesExceptClassNamesCollector(targetIndex: GlobalInnerIndex) : GlobalIndexRefreshingTaskBase(targetIndex) {
+/**
+ * Library shards are taken from [LibraryShardsCache] or collected from bytecode of library roots,
+ * project shard is collected from project sources on every refreshing.
+ */
+class GlobalNamesCollector(targetIndex: GlobalInnerIndex) : GlobalIndexRefreshingTaskBase(targetIndex) {
     private val namesCache get() = PsiShortNamesCache.getInstance(project)
+    private val projectScope get() = GlobalSearchScope.projectScope(project)
+    private val projectIdFilter get() = IdFilter.getProjectIdFilter(project, false)
+
+    override fun createJobs(): List<Job> {
+        val libraryRoots = ProjectRootManager.getInstance(project).orderEntries().librariesOnly().classes().roots.distinct()
+        val packageDirectories = JavaPsiFacade.getInstance(project).findPackage("")
+                ?.getDirectories(projectScope)
+                ?.flatMap { it.subdirectories.toList() }
+                ?: emptyList()
+
+        val libraryJobs = libraryRoots.map { root ->
+            Job("library:${root.url}", CombinedIndex.IndexType.globalValues()) { indicator -> collectLibraryShard(root, indicator) }
+        }
+        val projectJobs = listOf(
+                projectNamesJob("classes", listOf(CombinedIndex.IndexType.CLASSNAME)) { builder, indicator ->
+                    processNames(namesCache::processAllClassNames, indicator) { builder.add(CombinedIndex.IndexType.CLASSNAME, it) }
+                },
+                // method names are walked once for both types they give names to
+                projectNamesJob("methods", listOf(CombinedIndex.IndexType.NOT_CLASSNAME, CombinedIndex.IndexType.KOTLIN_SPECIFIC_FIELD)) { builder, indicator ->
+                    processNames(namesCache::processAllMethodNames, indicator) { name ->
+                        builder.add(CombinedIndex.IndexType.NOT_CLASSNAME, name)
+                        fieldNameFromGetterOrSetter(name)?.let { builder.add(CombinedIndex.IndexType.KOTLIN_SPECIFIC_FIELD, it) }
+                    }
+                },
+                projectNamesJob("fields", listOf(CombinedIndex.IndexType.NOT_CLASSNAME)) { builder, indicator ->
+                    processNames(namesCache::processAllFieldNames, indicator) { builder.add(CombinedIndex.IndexType.NOT_CLASSNAME, it) }
+                }
+        )
+        // package tree is walked in parallel, one job per top level package directory
+        val packageJobs = packageDirectories.map { directory ->
+            projectNamesJob("packages:${directory.virtualFile.url}", listOf(CombinedIndex.IndexType.NOT_CLASSNAME)) { builder, indicator ->
+                collectPackageNames(directory, indicator) { builder.add(CombinedIndex.IndexType.NOT_CLASSNAME, it) }
+            }
+        }
+        return libraryJobs + projectJobs + packageJobs
+    }
 
-    override val tasks = listOf<(indicator: ProgressIndicator?) -> Set<String>>(
-            { namesCache.allMethodNames.toSet() },
-            { namesCache.allFieldNames.toSet() },
-            { getPackageNames(it) }
-    )
+    // shard is cached as soon as it is collected, so that restarted task doesn't collect it again
+    // root which is gone has nothing to collect, it is dropped by the next refreshing
+    private fun collectLibraryShard(root: VirtualFile, indicator: ProgressIndicator?): JobResult {
+        if (!root.isValid) return JobResult.Skipped
+        val cache = libraryShardsCache
+        val key = cache.getKey(root)
+        val shard = key?.let { cache.get(it) }
+                ?: LibraryNamesCollector(signature) { shouldCollect(indicator) }.collect(root, WordPool())
+                ?: return JobResult.Interrupted
+        if (key != null) cache.put(key, shard)
+        return JobResult.Collected(IndexPart(LibraryShard(key, shard)))
+    }
 
-    private fun getPackageNames(indicator: ProgressIndicator?): Set<String> {
-        val initialPackage = JavaPsiFacade.getInstance(project).findPackage("")
+    // names are passed one by one as stub indices provide them, without collecting them first
+    private fun processNames(
+            process: (Processor<String>, GlobalSearchScope, IdFilter?) -> Boolean,
+            indicator: ProgressIndicator?,
+            consumer: (String) -> Unit
+    ) = process(Processor { indicator?.checkCanceled(); consumer(it); true }, projectScope, projectIdFilter)
+
+    // names of packages in the tree of the given directory, returns false if collection is interrupted
+    // directory which is gone has no names, its job is finished with nothing collected
+    private fun collectPackageNames(initialDirectory: PsiDirectory, indicator: ProgressIndicator?, consumer: (String) -> Unit): Boolean {
+        if (!initialDirectory.isValid) return true
         val javaDirService = JavaDirectoryService.getInstance()
-        val globalScope = GlobalSearchScope.allScope(project)
-
-        val initialDirectories = initialPackage?.getDirectories(globalScope) ?: arrayOf()
 
-        val dirsToCollectPackages = initialDirectories.flatMap { it.subdirectories.toList() }.toMutableList()
-        val packageNames = HashSet<String>()
+        val dirsToCollectPackages = mutableListOf(initialDirectory)
 
 //        // doesn't work:
 //            PackageIndexUtil.getSubPackageFqNames(FqName.ROOT, scope, project, { true })
 //                    .flatMap { it.pathSegments() }.map { it.identifier }.toSet()
 
-        while (shouldCollect(indicator) && dirsToCollectPackages.isNotEmpty()) {
+        while (dirsToCollectPackages.isNotEmpty()) {
+            if (!shouldCollect(indicator)) return false
             val subDir = dirsToCollectPackages.last()
             val subPackage = javaDirService.getPackage(subDir)
             val subPackageName = subPackage?.name
             if (subPackageName != null && subPackageName.isNotBlank()) {
-                packageNames.add(subPackageName)
+                consumer(subPackageName)
             }
             dirsToCollectPackages.removeAt(dirsToCollectPackages.size - 1)
             if (subPackage != null) {
@@ -149,6 +238,16 @@ class AllNamesExceptClassNamesCollector(targetIndex: GlobalInnerIndex) : GlobalI
                 dirsToCollectPackages.addAll(subDir.subdirectories)
             }
         }
-        return packageNames
+        return true
     }
-}
\ No newline at end of file
+}
+
+// kotlin properties of compiled classes are seen as getters and setters
+// returns null for other methods, prefix is checked by chars as it is done for every method name
+fun fieldNameFromGetterOrSetter(methodName: String) =
+        if (methodName.length >= 4 && methodName[3].isUpperCase() && methodName[1] == 'e' && methodName[2] == 't'
+                && (methodName[0] == 'g' || methodName[0] == 's')) {
+            methodName[3].toLowerCase() + methodName.substring(4)
+        } else {
+            null
+        }
@@ -0,0 +1,155 @@
+package com.jetbrains.typofixer.search.index
+
+import com.intellij.openapi.application.PathManager
+import com.intellij.openapi.diagnostic.Logger
+import com.intellij.openapi.project.Project
+import com.intellij.openapi.roots.ProjectRootManager
+import com.intellij.openapi.vfs.JarFileSystem
+import java.io.*
+import java.nio.ByteBuffer
+import java.nio.IntBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+
+/**
+ * Keeps the last complete global index of a project in a file under IDE system directory,
+ * so that it can be used right after the project is opened.
+ * The file is used only by the same index version and only while the project roots have the same fingerprint.
+ * Fingerprint covers the set of roots and the jars they are in, but not the content of directories (and not module outputs),
+ * so that the file survives edits and builds. Stale names are fixed by the refreshing which follows the loading.
+ *
+ * Only the project shard is stored in the file along with keys of library shards,
+ * library shards themselves are kept by [LibraryShardsCache].
+ */
+class GlobalIndexStorage(private val project: Project, private val version: Int) {
+
+    private val file get() = File(typoFixerSystemDirectory, "${project.locationHash}.index")
+
+    // must be called in read action
+    fun getRootsFingerprint(): Long {
+        // enumerator is changed by its settings, so every enumeration gets its own one
+        val rootManager = ProjectRootManager.getInstance(project)
+        val roots = rootManager.orderEntries().withoutModuleSourceEntries().classes().roots + rootManager.orderEntries().sources().roots
+        return roots.fold(version.toLong()) { hash, root ->
+            val rootHash = 31 * hash + root.url.hashCode()
+            val jar = JarFileSystem.getInstance().getVirtualFileForJar(root) ?: return@fold rootHash
+            31 * (31 * rootHash + jar.timeStamp) + jar.length
+        }
+    }
+
+    // returns keys of library shards and buffer positioned at the project shard or null if there is no valid file
+    fun map(fingerprint: Long): Pair<List<String>, ByteBuffer>? {
+        val buffer = mapIndexFile(file, version, fingerprint) ?: return null
+        val libraryKeys = (1..buffer.int).map {
+            val key = ByteArray(LibraryShardsCache.KEY_LENGTH)
+            buffer.get(key)
+            String(key, Charsets.US_ASCII)
+        }
+        return libraryKeys to buffer
+    }
+
+    fun save(projectShard: FrozenIndex, libraryKeys: List<String>, fingerprint: Long) = synchronized(this) {
+        writeIndexFile(file, version, fingerprint) { output ->
+            output.writeInt(libraryKeys.size)
+            libraryKeys.forEach { output.write(it.toByteArray(Charsets.US_ASCII)) }
+            projectShard.writeTo(output)
+        }
+    }
+
+    fun saveInBackground(projectShard: FrozenIndex, libraryKeys: List<String>, fingerprint: Long) =
+            runInBackground { save(projectShard, libraryKeys, fingerprint) }
+}
+
+val typoFixerSystemDirectory get() = File(PathManager.getSystemPath(), "typoFixer")
+
+private val LOG = Logger.getInstance("#com.jetbrains.typofixer.search.index.GlobalIndexStorage")
+
+private val MAGIC = 0x7970F1C5
+private val HEADER_SIZE = 24
+
+// given file points to the data file, which is mapped, so that it's never replaced while it may be mapped
+// returns buffer positioned after the header or null if there is no valid file
+fun mapIndexFile(file: File, version: Int, fingerprint: Long): ByteBuffer? {
+    val dataFile = getDataFile(file) ?: return null
+    if (!dataFile.isFile) return null
+    return try {
+        RandomAccessFile(dataFile, "r").use {
+            val buffer = it.channel.map(FileChannel.MapMode.READ_ONLY, 0, it.length())
+            val isValid = buffer.limit() >= HEADER_SIZE &&
+                    buffer.int == MAGIC && buffer.int == version && buffer.long == fingerprint &&
+                    buffer.long == it.length()
+            if (isValid) buffer else null
+        }
+    } catch (e: IOException) {
+        null
+    }
+}
+
+// content is written to a new data file, then the given file is pointed to it, so that readers never see a partial file.
+// mapped files can't be replaced on some platforms (e.g. on Windows), so data files are never replaced,
+// the previous ones are deleted once they are not pointed to, the ones which are still mapped are deleted by the next writes
+fun writeIndexFile(file: File, version: Int, fingerprint: Long, writeContent: (DataOutputStream) -> Unit) {
+    val dataFile = try {
+        file.parentFile.mkdirs()
+        File.createTempFile(file.name + DATA_FILE_INFIX, "", file.parentFile)
+    } catch (e: IOException) {
+        LOG.warn("Index file $file is not written", e)
+        return
+    }
+    val pointerFile = File(dataFile.path + ".pointer")
+    try {
+        DataOutputStream(BufferedOutputStream(FileOutputStream(dataFile))).use {
+            it.writeInt(MAGIC)
+            it.writeInt(version)
+            it.writeLong(fingerprint)
+            // file length is written after the content
+            it.writeLong(0)
+            writeContent(it)
+        }
+        RandomAccessFile(dataFile, "rw").use {
+            it.seek(HEADER_SIZE - 8L)
+            it.writeLong(it.length())
+        }
+        pointerFile.writeText(dataFile.name, Charsets.UTF_8)
+        Files.move(pointerFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+    } catch (e: IOException) {
+        LOG.warn("Index file $file is not written", e)
+        dataFile.delete()
+        pointerFile.delete()
+        return
+    }
+    file.parentFile.listFiles { _, name -> name.startsWith(file.name + DATA_FILE_INFIX) && name != dataFile.name }?.forEach { it.delete() }
+}
+
+private val DATA_FILE_INFIX = ".data"
+private val MAX_POINTER_LENGTH = 1024
+
+// null if the file doesn't point to a data file
+private fun getDataFile(file: File): File? {
+    if (!file.isFile || file.length() > MAX_POINTER_LENGTH) return null
+    val name = try {
+        file.readText(Charsets.UTF_8)
+    } catch (e: IOException) {
+        return null
+    }
+    return if (name.startsWith(file.name + DATA_FILE_INFIX) && '/' !in name && '\\' !in name) File(file.parentFile, name) else null
+}
+
+fun runInBackground(task: () -> Unit) {
+    val thread = Thread { task() }
+    thread.priority = Thread.MIN_PRIORITY
+    thread.start()
+}
+
+fun ByteBuffer.sliceInts(count: Int): IntBuffer {
+    val result = (slice().limit(4 * count) as ByteBuffer).asIntBuffer()
+    position(position() + 4 * count)
+    return result
+}
+
+fun ByteBuffer.sliceBytes(count: Int): ByteBuffer {
+    val result = (slice().limit(count) as ByteBuffer).slice()
+    position(position() + count)
+    return result
+}
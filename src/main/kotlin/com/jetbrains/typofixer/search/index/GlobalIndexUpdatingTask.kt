@@ -0,0 +1,29 @@
+package com.jetbrains.typofixer.search.index
+
+import com.intellij.openapi.application.ApplicationManager
+import com.intellij.openapi.progress.ProgressIndicator
+import com.intellij.openapi.progress.util.ProgressIndicatorUtils
+import com.intellij.openapi.progress.util.ReadTask
+import com.intellij.openapi.project.DumbService
+import com.jetbrains.typofixer.typoFixerComponent
+
+// applies changes of project files to the published generation of global index
+class GlobalIndexUpdatingTask(private val targetIndex: GlobalInnerIndex) : ReadTask() {
+
+    private val project get() = targetIndex.project
+
+    override fun runBackgroundProcess(indicator: ProgressIndicator): Continuation? {
+        ApplicationManager.getApplication().runReadAction {
+            if (project.isInitialized && !DumbService.isDumb(project)) {
+                targetIndex.applyChanges(indicator)
+            }
+        }
+        project.typoFixerComponent.onSearcherStatusMaybeChanged()
+        return null
+    }
+
+    // changes stay in tracker until they are applied
+    override fun onCanceled(indicator: ProgressIndicator) {
+        ProgressIndicatorUtils.scheduleWithWriteActionPriority(this)
+    }
+}
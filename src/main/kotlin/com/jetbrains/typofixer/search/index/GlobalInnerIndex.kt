@@ -1,51 +1,164 @@
 package com.jetbrains.typofixer.search.index
 
+import com.intellij.openapi.application.ApplicationManager
+import com.intellij.openapi.progress.ProgressIndicator
 import com.intellij.openapi.progress.util.ProgressIndicatorUtils
 import com.intellij.openapi.progress.util.ReadTask
 import com.intellij.openapi.project.DumbService
 import com.intellij.openapi.project.Project
+import com.intellij.openapi.util.Computable
 import com.jetbrains.typofixer.search.signature.Signature
 import com.jetbrains.typofixer.typoFixerComponent
 import org.jetbrains.annotations.TestOnly
-import java.io.ByteArrayInputStream
-import java.io.ByteArrayOutputStream
-import java.io.ObjectInputStream
-import java.io.ObjectOutputStream
 import java.util.*
-import java.util.concurrent.atomic.AtomicBoolean
-import java.util.zip.GZIPInputStream
-import java.util.zip.GZIPOutputStream
 
 
 class GlobalInnerIndex(
         val project: Project,
         signature: Signature,
+        private val storage: GlobalIndexStorage?,
+        val libraryShardsCache: LibraryShardsCache,
+        private val namesTracker: ProjectNamesTracker,
         private val getRefreshingTask: (GlobalInnerIndex) -> GlobalIndexRefreshingTaskBase
 ) : InnerIndex(signature) {
 
-    private val index = HashMap<Int, IndexEntry>()
+    // published generation, readers use it without any locking
+    @Volatile
+    private var snapshot = ShardedIndex.EMPTY
+
+    // words of the project shard and its delta, new pool is taken when the shard is rebuilt, so that unused words are dropped
+    // library shards have pools of their own, as they are shared by projects
+    private var wordPool = WordPool()
+        set(value) {
+            field = value
+            addedIds.clear()
+        }
+
+    // project names changed since the project shard was built, types masks by words
+    private val addedWords = HashMap<String, Int>()
+    private val removedMasks = HashMap<String, Int>()
+    // ids in the word pool of the words which are added or were added since the pool was taken, so that they are interned once
+    private val addedIds = HashMap<String, Int>()
+
+    // global types the published generation has all the words of, all of them unless it is published by an incomplete refreshing
+    // generation without some of the types is replaced by the next refreshing, changes are not applied to it
+    @Volatile
+    private var readyTypesMask = 0
+    private val hasCompleteGeneration get() = readyTypesMask == ALL_TYPES_MASK
+    fun hasCompleteGeneration() = hasCompleteGeneration
+
+    @Volatile
+    private var isCompacting = false
 
     @Volatile
     private var lastRefreshingTask: GlobalIndexRefreshingTaskBase? = null
+    // modification count of names tracker when the last refreshing task started, guarded by index monitor
+    private var refreshingModificationCount = 0L
+
+    // old generation is used while the new one is built
+    fun isUsable() = hasCompleteGeneration || !isRefreshing()
 
-    fun isUsable() = lastRefreshingTask == null
+    // during the first refreshing types become ready one by one, as soon as all the names of a type are collected
+    fun isReady(type: CombinedIndex.IndexType) = readyTypesMask and type.mask != 0
+    fun getReadyTypes() = CombinedIndex.IndexType.globalValues().filter { isReady(it) }
+
+    fun isRefreshing() = lastRefreshingTask != null
     fun isCurrentRefreshingTask(task: ReadTask) = task === lastRefreshingTask
-    fun clearRefreshingTask(task: ReadTask) = synchronized(this) {
-        if (isCurrentRefreshingTask(task)) lastRefreshingTask = null
+
+    override fun getSize() = getUsableSnapshot().size
+
+    override fun getAll(signatures: Set<Int>): Sequence<String> {
+        val snapshot = getUsableSnapshot()
+        return signatures.asSequence().flatMap { snapshot.get(it) }
     }
 
-    override fun getSize() = synchronizedAccess { index.entries.sumBy { it.value.getSize() } }
-    override fun getAll(signatures: Set<Int>) = synchronizedAccess { super.getAll(signatures) }
+    override fun getAll(signature: Int) = getUsableSnapshot().get(signature)
+    override fun getBucketSize(signature: Int) = getUsableSnapshot().getBucketSize(signature)
 
-    override fun addAll(strings: Set<String>) = synchronized(this@GlobalInnerIndex) { super.addAll(strings) }
+    // the published generation is checked whatever types are ready, it's only a hint
+    override fun mayContain(signature: Int) = snapshot.mayContain(signature)
+
+    // words of any of given types with masks of those of types they belong to
+    fun getAll(signature: Int, types: List<CombinedIndex.IndexType>) = getSnapshotWith(types).get(signature, maskOf(types))
+    fun getBucketSize(signature: Int, types: List<CombinedIndex.IndexType>) = getSnapshotWith(types).getBucketSize(signature, maskOf(types))
+
+    // parts collected so far are published if there is no generation with all the types yet
+    // nothing is published unless given types include all the ready ones and some more
+    // must be called in read action
+    fun publishReadyTypes(task: ReadTask, parts: List<IndexPart>, readyTypes: List<CombinedIndex.IndexType>) {
+        val readyMask = maskOf(readyTypes)
+        fun isPublishingNeeded() = isCurrentRefreshingTask(task) && readyMask != readyTypesMask && readyMask and readyTypesMask == readyTypesMask
+        if (!isPublishingNeeded()) return
+        // builders of the parts are copied, as collection goes on
+        val builder = BucketsBuilder(signature)
+        parts.forEach { part -> part.projectNames?.let { builder.addAll(it) } }
+        val pool = WordPool()
+        val projectShard = builder.freeze(pool)
+        val libraryShards = parts.mapNotNull { it.libraryShard }
 
-    fun refresh() {
-        val refreshingTask = getRefreshingTask(this)
         synchronized(this@GlobalInnerIndex) {
-            lastRefreshingTask = refreshingTask
-            index.clear()
+            if (!isPublishingNeeded()) return
+            publish(ShardedIndex(projectShard, libraryShardsCache.acquire(libraryShards)), readyMask)
+            wordPool = pool
         }
         project.typoFixerComponent.onSearcherStatusMaybeChanged()
+    }
+
+    // parts collected by the task make up the new generation, it is built without holding index monitor
+    // builders of the parts are merged into one of them, so the parts can't be used after that
+    // incomplete generation is published only if there is no complete one yet, with the types all the jobs of which are finished
+    // complete one is also stored
+    // must be called in read action
+    fun finishRefreshing(task: ReadTask, parts: List<IndexPart>, readyTypes: List<CombinedIndex.IndexType>) {
+        if (!isCurrentRefreshingTask(task)) return
+        val readyMask = maskOf(readyTypes)
+        val isComplete = readyMask == ALL_TYPES_MASK
+        if (!isComplete && hasCompleteGeneration) {
+            synchronized(this@GlobalInnerIndex) {
+                if (isCurrentRefreshingTask(task)) lastRefreshingTask = null
+            }
+            return
+        }
+        val pool = WordPool()
+        val projectShard = BucketsBuilder.merge(parts.mapNotNull { it.projectNames }, signature).freeze(pool)
+        val libraryShards = parts.mapNotNull { it.libraryShard }
+
+        synchronized(this@GlobalInnerIndex) {
+            if (!isCurrentRefreshingTask(task)) return
+            publish(ShardedIndex(projectShard, libraryShardsCache.acquire(libraryShards)), readyMask)
+            wordPool = pool
+            addedWords.clear()
+            removedMasks.clear()
+            namesTracker.onProjectShardRebuilt(refreshingModificationCount)
+            lastRefreshingTask = null
+        }
+        if (isComplete && storage != null) {
+            val snapshot = snapshot
+            val libraryKeys = snapshot.libraryShards.mapNotNull { it.key }
+            storage.saveInBackground(snapshot.projectShard, libraryKeys, storage.getRootsFingerprint())
+        }
+    }
+
+    // stored index is used until the first generation is built, library shards without key are missing in it
+    // returns false if there is no stored index for current project roots or some of its library shards are not cached
+    fun loadStored(): Boolean {
+        storage ?: return false
+        val fingerprint = ApplicationManager.getApplication().runReadAction(Computable { storage.getRootsFingerprint() })
+        val (libraryKeys, buffer) = storage.map(fingerprint) ?: return false
+        val libraryShards = libraryKeys.map { LibraryShard(it, libraryShardsCache.get(it) ?: return false) }
+        synchronized(this@GlobalInnerIndex) {
+            if (hasCompleteGeneration) return false
+            val pool = WordPool()
+            publish(ShardedIndex(FrozenIndex.readFrom(buffer, pool), libraryShardsCache.acquire(libraryShards)))
+            wordPool = pool
+        }
+        project.typoFixerComponent.onSearcherStatusMaybeChanged()
+        return true
+    }
+
+    fun refresh() {
+        val refreshingTask = startRefreshing()
+        project.typoFixerComponent.onSearcherStatusMaybeChanged()
         DumbService.getInstance(project).smartInvokeLater {
             if (project.isInitialized) {
                 ProgressIndicatorUtils.scheduleWithWriteActionPriority(refreshingTask)
@@ -53,103 +166,144 @@ class GlobalInnerIndex(
         }
     }
 
-    fun startEntriesCompression() {
-        var toSynchronize: List<IndexEntry>? = null
-        synchronized(this) { toSynchronize = index.values.toList() }
-        val doCompress = Thread { toSynchronize!!.forEach { it.compress() } }
-        doCompress.priority = Thread.MIN_PRIORITY
-        doCompress.start()
+    // changes of project files are applied to the published generation, full refreshing is not needed for them
+    fun update() {
+        if (!namesTracker.hasChanges()) return
+        val updatingTask = GlobalIndexUpdatingTask(this)
+        DumbService.getInstance(project).smartInvokeLater {
+            if (project.isInitialized) {
+                ProgressIndicatorUtils.scheduleWithWriteActionPriority(updatingTask)
+            }
+        }
     }
 
-    override fun getWithDefault(signature: Int) = index[signature]?.getAll() ?: emptySequence()
+    // must be called in read action in smart mode
+    // changes are kept by tracker until there is a generation to apply them to
+    fun applyChanges(indicator: ProgressIndicator?) {
+        if (!hasCompleteGeneration || !namesTracker.hasChanges()) return
+        val changes = namesTracker.collectChanges(indicator)
+        synchronized(this@GlobalInnerIndex) {
+            if (!hasCompleteGeneration) return
+            changes.removed.forEach { (type, words) ->
+                words.forEach {
+                    removedMasks[it] = (removedMasks[it] ?: 0) or type.mask
+                    removeFromMask(addedWords, it, type.mask)
+                }
+            }
+            changes.added.forEach { (type, words) ->
+                words.forEach {
+                    addedWords[it] = (addedWords[it] ?: 0) or type.mask
+                    removeFromMask(removedMasks, it, type.mask)
+                }
+            }
+            namesTracker.onChangesApplied(changes, isRefreshing())
+            if (changes.isEmpty) return
 
-    override fun addAll(signature: Int, strings: Set<String>) {
-        if (index[signature] == null) {
-            index[signature] = IndexEntry()
+            val newWords = addedWords.keys.filter { it !in addedIds }
+            wordPool.intern(newWords).forEachIndexed { index, id -> addedIds[newWords[index]] = id }
+            val added = BucketsBuilder(signature)
+            addedWords.forEach { (word, mask) -> added.add(signature.get(word), word, mask) }
+            val snapshot = snapshot
+            val delta = ProjectDelta(added.freezeInterned(wordPool, addedIds), HashMap(removedMasks))
+            publish(ShardedIndex(snapshot.projectShard, libraryShardsCache.acquire(snapshot.libraryShards), delta))
+            if (delta.size > COMPACTION_THRESHOLD && !isCompacting) {
+                isCompacting = true
+                runInBackground { compact() }
+            }
         }
-        index[signature]!!.addAll(strings)
     }
 
-    private fun <T> synchronizedAccess(doGet: () -> T): T {
-        if (!isUsable()) throw TriedToAccessIndexWhileItIsRefreshing()
-        synchronized(this@GlobalInnerIndex) {
-            if (isUsable()) return doGet()
-            else throw TriedToAccessIndexWhileItIsRefreshing()
+    // merges the delta into a new project shard with its own pool
+    // the result is dropped if the generation is changed meanwhile, next update starts compaction again in that case
+    fun compact() {
+        try {
+            val snapshot = snapshot
+            val removedMasks = snapshot.projectDelta.removedMasks
+            val builder = BucketsBuilder(signature)
+            snapshot.projectShard.forEach { signature, word, mask ->
+                val leftMask = mask and (removedMasks[word] ?: 0).inv()
+                if (leftMask != 0) builder.add(signature, word, leftMask)
+            }
+            snapshot.projectDelta.added.forEach { signature, word, mask -> builder.add(signature, word, mask) }
+            val pool = WordPool()
+            val projectShard = builder.freeze(pool)
+            synchronized(this@GlobalInnerIndex) {
+                if (snapshot !== this.snapshot) return
+                publish(ShardedIndex(projectShard, libraryShardsCache.acquire(snapshot.libraryShards)))
+                wordPool = pool
+                addedWords.clear()
+                this.removedMasks.clear()
+            }
+        } finally {
+            isCompacting = false
         }
     }
 
+    // shared library shards of the published generation are released
+    fun dispose() {
+        synchronized(this@GlobalInnerIndex) {
+            lastRefreshingTask = null
+            publish(ShardedIndex.EMPTY)
+        }
+    }
 
-    class TriedToAccessIndexWhileItIsRefreshing : RuntimeException()
-
-
-    // todo: make it lazy
-    private inner class IndexEntry {
-
-        private var wordCount: Int = 0
-
-        @Volatile
-        var isCompressed = false
-            private set
+    // must be called under index monitor
+    // snapshot is set before the types are marked as ready, so that it is seen by anyone who sees them ready
+    private fun publish(newSnapshot: ShardedIndex, readyMask: Int = ALL_TYPES_MASK) {
+        libraryShardsCache.release(snapshot.libraryShards)
+        snapshot = newSnapshot
+        readyTypesMask = readyMask
+    }
 
-        @Volatile
-        var compressionInitiated = AtomicBoolean(false)
+    private fun startRefreshing(): GlobalIndexRefreshingTaskBase {
+        val refreshingTask = getRefreshingTask(this)
+        synchronized(this@GlobalInnerIndex) {
+            lastRefreshingTask = refreshingTask
+            refreshingModificationCount = namesTracker.getModificationCount()
+        }
+        return refreshingTask
+    }
 
-        private var content: HashSet<String>? = hashSetOf()
-        private var bytes: ByteArray? = null
+    override fun getWithDefault(signature: Int) = snapshot.get(signature)
 
-        fun addAll(strings: Set<String>) {
-            content!!.addAll(strings)
-            wordCount = content!!.size
-        }
+    private fun removeFromMask(masks: HashMap<String, Int>, word: String, mask: Int) {
+        val leftMask = (masks[word] ?: return) and mask.inv()
+        if (leftMask == 0) masks.remove(word) else masks[word] = leftMask
+    }
 
-        fun compress() {
-            if (!compressionInitiated.compareAndSet(/* expect = */false, /* update = */true)) return
-
-            val outputBytes = ByteArrayOutputStream()
-            val outputStream = ObjectOutputStream(GZIPOutputStream(outputBytes))
-            content!!.forEach { outputStream.writeObject(it) }
-            outputStream.close()
-            val newBytes = outputBytes.toByteArray()
-            // todo: can do without lock
-            synchronized(this@IndexEntry) {
-                if (!isCompressed) {
-                    bytes = newBytes
-                    content = null
-                    isCompressed = true
-                }
-            }
-        }
+    private fun getUsableSnapshot(): ShardedIndex {
+        if (!isUsable()) throw TriedToAccessIndexWhileItIsRefreshing()
+        return snapshot
+    }
 
-        fun getAll(): Sequence<String> {
-            synchronized(this@IndexEntry) {
-                if (!isCompressed) {
-                    return content!!.asSequence().constrainOnce()
-                }
-            }
-            if (!isCompressed) throw IllegalStateException()
-            val inputStream = ObjectInputStream(GZIPInputStream(ByteArrayInputStream(bytes!!)))
+    private fun getSnapshotWith(types: List<CombinedIndex.IndexType>): ShardedIndex {
+        if (maskOf(types) and readyTypesMask.inv() != 0) throw TriedToAccessIndexWhileItIsRefreshing()
+        return snapshot
+    }
 
+    class TriedToAccessIndexWhileItIsRefreshing : RuntimeException()
 
-            return generateSequence { inputStream.readObject() as String }.take(wordCount)
-        }
+    companion object {
+        // delta words count which starts compaction
+        private val COMPACTION_THRESHOLD = 1000
 
-        fun getSize() = wordCount
+        private val ALL_TYPES_MASK = maskOf(CombinedIndex.IndexType.globalValues())
 
-        fun contains(str: String) = getAll().contains(str)
+        private fun maskOf(types: List<CombinedIndex.IndexType>) = types.fold(0) { mask, type -> mask or type.mask }
     }
 
+
     @TestOnly
     fun waitForRefreshing() {
-        val refreshingTask = getRefreshingTask(this)
-        synchronized(this@GlobalInnerIndex) {
-            lastRefreshingTask = refreshingTask
-            index.clear()
-        }
+        val refreshingTask = startRefreshing()
         DumbService.getInstance(project).runReadActionInSmartMode {
             refreshingTask.waitForRefreshing()
         }
     }
 
     @TestOnly
-    override fun contains(str: String) = synchronizedAccess { index[signature.get(str)]?.contains(str) == true }
+    fun getWordPool() = wordPool
+
+    @TestOnly
+    override fun contains(str: String) = getUsableSnapshot().contains(signature.get(str), str)
 }
\ No newline at end of file
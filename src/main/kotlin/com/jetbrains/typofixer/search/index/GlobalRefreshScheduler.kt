@@ -0,0 +1,72 @@
+package com.jetbrains.typofixer.search.index
+
+import com.intellij.openapi.Disposable
+import com.intellij.util.Alarm
+
+/**
+ * Coalesces requests of global index refreshing.
+ *
+ * Requests are executed after a quiet period without new requests (but not later than [MAX_DELAY] after the first one),
+ * all the requests made meanwhile are executed once. Full refreshing also covers pending updates.
+ * Full refreshings are executed not more often than once per [MIN_FULL_REFRESH_INTERVAL],
+ * so that a burst of root changes (e.g. build tool sync) doesn't restart collection over and over again.
+ */
+class GlobalRefreshScheduler(
+        private val refresh: () -> Unit,
+        private val update: () -> Unit,
+        parentDisposable: Disposable
+) {
+    private val alarm = Alarm(Alarm.ThreadToUse.SWING_THREAD, parentDisposable)
+
+    // guarded by scheduler monitor
+    private var isRefreshPending = false
+    private var isUpdatePending = false
+    private var firstPendingRequestTime = 0L
+    private var lastRefreshTime = 0L
+
+    var timesRequested = 0
+        private set
+    var timesExecuted = 0
+        private set
+    // requests merged into another pending one
+    var timesCoalesced = 0
+        private set
+
+    fun requestRefresh() = request(isFull = true)
+    fun requestUpdate() = request(isFull = false)
+
+    private fun request(isFull: Boolean) = synchronized(this) {
+        val now = System.currentTimeMillis()
+        ++timesRequested
+        if (isRefreshPending || isUpdatePending) {
+            ++timesCoalesced
+        } else {
+            firstPendingRequestTime = now
+        }
+        if (isFull) isRefreshPending = true else isUpdatePending = true
+
+        var delay = Math.min(QUIET_PERIOD, firstPendingRequestTime + MAX_DELAY - now)
+        if (isRefreshPending) delay = Math.max(delay, lastRefreshTime + MIN_FULL_REFRESH_INTERVAL - now)
+        alarm.cancelAllRequests()
+        alarm.addRequest({ execute() }, Math.max(delay, 0))
+    }
+
+    private fun execute() {
+        val isFull: Boolean
+        synchronized(this) {
+            if (!isRefreshPending && !isUpdatePending) return
+            isFull = isRefreshPending
+            isRefreshPending = false
+            isUpdatePending = false
+            if (isFull) lastRefreshTime = System.currentTimeMillis()
+            ++timesExecuted
+        }
+        if (isFull) refresh() else update()
+    }
+
+    companion object {
+        private val QUIET_PERIOD = 300L
+        private val MAX_DELAY = 2000L
+        private val MIN_FULL_REFRESH_INTERVAL = 5000L
+    }
+}
@@ -9,14 +9,26 @@ abstract class InnerIndex(val signature: Signature) {
 
     // todo: make signatures lazy (?)
     open fun getAll(signatures: Set<Int>) = signatures.asSequence().flatMap { getWithDefault(it) }
+    open fun getAll(signature: Int) = getWithDefault(signature)
 
-    open fun addAll(strings: Set<String>) {
-        strings.groupBy { signature.get(it) }.forEach { addAll(it.key, it.value.toSet()) }
-    }
+    // count of words with given signature
+    abstract fun getBucketSize(signature: Int): Int
+
+    // false if there are surely no words with given signature, checked without bucket lookup
+    abstract fun mayContain(signature: Int): Boolean
 
     protected abstract fun getWithDefault(signature: Int): Sequence<String>
-    protected abstract fun addAll(signature: Int, strings: Set<String>)
 
     @TestOnly
     abstract fun contains(str: String): Boolean
-}
\ No newline at end of file
+}
+
+// index filled word by word, global index is filled by its refreshing task only
+abstract class MutableInnerIndex(signature: Signature) : InnerIndex(signature) {
+
+    open fun addAll(strings: Set<String>) {
+        strings.groupBy { signature.get(it) }.forEach { addAll(it.key, it.value.toSet()) }
+    }
+
+    protected abstract fun addAll(signature: Int, strings: Set<String>)
+}
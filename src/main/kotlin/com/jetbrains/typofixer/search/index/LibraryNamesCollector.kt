@@ -0,0 +1,131 @@
+package com.jetbrains.typofixer.search.index
+
+import com.intellij.openapi.vfs.VirtualFile
+import com.jetbrains.typofixer.search.signature.Signature
+import org.jetbrains.org.objectweb.asm.AnnotationVisitor
+import org.jetbrains.org.objectweb.asm.ClassReader
+import org.jetbrains.org.objectweb.asm.ClassVisitor
+import org.jetbrains.org.objectweb.asm.FieldVisitor
+import org.jetbrains.org.objectweb.asm.MethodVisitor
+import org.jetbrains.org.objectweb.asm.Opcodes
+import java.io.IOException
+
+/**
+ * Collects names declared by compiled classes of a library root straight from their bytecode,
+ * so that the result depends on the library only and can be shared by projects.
+ *
+ * Unlike names collected from PSI, bytecode has names which are not seen in sources, so these are skipped:
+ * synthetic classes and members, anonymous classes, names generated by compilers (the ones with '$'),
+ * Kotlin facade classes of top level declarations (their members are collected though).
+ * Package names are taken from the directories which have class files inside of them, so resource directories are skipped.
+ */
+class LibraryNamesCollector(private val signature: Signature, private val shouldCollect: () -> Boolean) {
+
+    // names go to the builder as soon as they are read
+    private val builder = BucketsBuilder(signature)
+
+    // directories whose names are collected already
+    private val packageDirectories = HashSet<VirtualFile>()
+
+    // returns null if collection is interrupted
+    fun collect(root: VirtualFile, pool: WordPool): FrozenIndex? {
+        val filesToVisit = root.children.toMutableList()
+        while (filesToVisit.isNotEmpty()) {
+            if (!shouldCollect()) return null
+            val file = filesToVisit.removeAt(filesToVisit.size - 1)
+            if (file.isDirectory) {
+                if (isIdentifier(file.name)) filesToVisit.addAll(file.children)
+            } else if (file.extension == "class") {
+                visitClassFile(file)
+                addPackageNames(file.parent, root)
+            }
+        }
+        return builder.freeze(pool)
+    }
+
+    private fun visitClassFile(file: VirtualFile) {
+        val bytes = try {
+            file.contentsToByteArray()
+        } catch (e: IOException) {
+            return
+        }
+        val visitor = NamesVisitor()
+        try {
+            ClassReader(bytes).accept(visitor, ClassReader.SKIP_CODE or ClassReader.SKIP_DEBUG or ClassReader.SKIP_FRAMES)
+        } catch (e: RuntimeException) {
+            // broken class file
+            return
+        }
+        val shortName = visitor.shortName ?: return
+        if (!visitor.isSynthetic && !visitor.isKotlinFacade && isIdentifier(shortName) && '$' !in shortName) {
+            builder.add(CombinedIndex.IndexType.CLASSNAME, shortName)
+        }
+    }
+
+    // names of the directories from the given one up to the root, excluding the root
+    private fun addPackageNames(directory: VirtualFile?, root: VirtualFile) {
+        var current = directory
+        while (current != null && current != root && packageDirectories.add(current)) {
+            builder.add(CombinedIndex.IndexType.NOT_CLASSNAME, current.name)
+            current = current.parent
+        }
+    }
+
+    private inner class NamesVisitor : ClassVisitor(Opcodes.ASM5) {
+        private var name = ""
+        var isSynthetic = false
+            private set
+        // null for anonymous classes
+        var shortName: String? = null
+            private set
+        // file facades and multifile facades and their parts
+        var isKotlinFacade = false
+            private set
+
+        override fun visit(version: Int, access: Int, name: String, signature: String?, superName: String?, interfaces: Array<out String>?) {
+            this.name = name
+            isSynthetic = access and Opcodes.ACC_SYNTHETIC != 0
+            shortName = name.substringAfterLast('/')
+        }
+
+        override fun visitAnnotation(desc: String, visible: Boolean): AnnotationVisitor? {
+            if (desc != KOTLIN_METADATA) return null
+            return object : AnnotationVisitor(Opcodes.ASM5) {
+                override fun visit(name: String?, value: Any?) {
+                    if (name == KOTLIN_METADATA_KIND && value in KOTLIN_FACADE_KINDS) isKotlinFacade = true
+                }
+            }
+        }
+
+        // nested classes refer to themselves with their short names
+        override fun visitInnerClass(name: String, outerName: String?, innerName: String?, access: Int) {
+            if (name == this.name) shortName = innerName
+        }
+
+        override fun visitMethod(access: Int, name: String, desc: String?, signature: String?, exceptions: Array<out String>?): MethodVisitor? {
+            if (isSourceName(access, name) && access and Opcodes.ACC_BRIDGE == 0) {
+                builder.add(CombinedIndex.IndexType.NOT_CLASSNAME, name)
+                fieldNameFromGetterOrSetter(name)?.let { builder.add(CombinedIndex.IndexType.KOTLIN_SPECIFIC_FIELD, it) }
+            }
+            return null
+        }
+
+        override fun visitField(access: Int, name: String, desc: String?, signature: String?, value: Any?): FieldVisitor? {
+            if (isSourceName(access, name)) builder.add(CombinedIndex.IndexType.NOT_CLASSNAME, name)
+            return null
+        }
+
+        // skips constructors, class initializers and names generated by compilers
+        private fun isSourceName(access: Int, name: String) = access and Opcodes.ACC_SYNTHETIC == 0 && isIdentifier(name) && '$' !in name
+    }
+
+    companion object {
+        private val KOTLIN_METADATA = "Lkotlin/Metadata;"
+        private val KOTLIN_METADATA_KIND = "k"
+        // file facade, multifile class facade and multifile class part
+        private val KOTLIN_FACADE_KINDS = setOf(2, 4, 5)
+    }
+
+    private fun isIdentifier(name: String) =
+            name.isNotEmpty() && Character.isJavaIdentifierStart(name[0]) && name.all { Character.isJavaIdentifierPart(it) }
+}
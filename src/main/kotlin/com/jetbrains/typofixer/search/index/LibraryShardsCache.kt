@@ -0,0 +1,155 @@
+package com.jetbrains.typofixer.search.index
+
+import com.intellij.openapi.application.ApplicationManager
+import com.intellij.openapi.components.ServiceManager
+import com.intellij.openapi.vfs.JarFileSystem
+import com.intellij.openapi.vfs.VirtualFile
+import com.intellij.openapi.vfs.newvfs.ManagingFS
+import com.jetbrains.typofixer.search.DLSearcher
+import java.io.File
+import java.io.FileInputStream
+import java.io.IOException
+import java.security.MessageDigest
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Library shards of global index shared by all the open projects. A shard is keyed by content hash of its jar,
+ * so that the same library is collected once even if it is located at different paths or its jar is touched.
+ * A library directory is keyed by its url and persistent modification count, which grows on any change inside of it.
+ * Shards are stored under IDE system directory and survive IDE restarts.
+ *
+ * Global index of a project acquires shards it publishes and releases them when they are replaced or the project is closed.
+ * All the projects get the same instance of a shard, shard is dropped from memory when nobody has referenced it
+ * for a grace period, so that a project which is reopened or refreshed right away doesn't load it again.
+ */
+class LibraryShardsCache(
+        // stored shards would make tests depend on each other
+        private val isStoredOnDisk: Boolean = !ApplicationManager.getApplication().isUnitTestMode,
+        private val gracePeriodMillis: Long = DEFAULT_GRACE_PERIOD_MILLIS
+) {
+
+    private class KeyEntry(val timeStamp: Long, val length: Long, val key: String)
+
+    private class ShardEntry(val shard: FrozenIndex) {
+        var references = 0
+        // when references have dropped to zero, entries are created without references
+        var releasedAt = System.currentTimeMillis()
+    }
+
+    class Statistics(val shardsCount: Int, val references: Int, val retainedBytes: Long, val bytesWithoutSharing: Long)
+
+    // jar hashes are recalculated only after jar is modified
+    private val keysByPaths = ConcurrentHashMap<String, KeyEntry>()
+
+    // guarded by cache monitor. entries without references are kept for the grace period
+    private val shardsByKeys = HashMap<String, ShardEntry>()
+
+    private val directory get() = File(typoFixerSystemDirectory, "shards")
+
+    // returns null for roots which are neither inside of jars nor directories
+    fun getKey(root: VirtualFile): String? {
+        val jar = JarFileSystem.getInstance().getVirtualFileForJar(root) ?: return getDirectoryKey(root)
+        val cached = keysByPaths[jar.path]
+        if (cached != null && cached.timeStamp == jar.timeStamp && cached.length == jar.length) return cached.key
+        val key = try {
+            hashOf(File(jar.path))
+        } catch (e: IOException) {
+            return null
+        }
+        keysByPaths[jar.path] = KeyEntry(jar.timeStamp, jar.length, key)
+        return key
+    }
+
+    // directory contents aren't hashed, the same directory at another path gets another key
+    private fun getDirectoryKey(root: VirtualFile): String? {
+        if (!root.isValid || !root.isDirectory) return null
+        val stamp = ManagingFS.getInstance().getModificationCount(root)
+        return hashOf("${root.url}\n$stamp".toByteArray(Charsets.UTF_8))
+    }
+
+    fun get(key: String): FrozenIndex? {
+        val cached = synchronized(this) { shardsByKeys[key]?.shard }
+        if (cached != null || !isStoredOnDisk) return cached
+        val buffer = mapIndexFile(fileOf(key), DLSearcher.VERSION, 0) ?: return null
+        val loaded = FrozenIndex.readFrom(buffer, WordPool())
+        return synchronized(this) { shardsByKeys.getOrPut(key) { ShardEntry(loaded) }.shard }
+    }
+
+    fun put(key: String, shard: FrozenIndex) {
+        synchronized(this) {
+            evictReleased()
+            if (key in shardsByKeys) return
+            shardsByKeys[key] = ShardEntry(shard)
+        }
+        if (isStoredOnDisk) {
+            runInBackground { writeIndexFile(fileOf(key), DLSearcher.VERSION, 0) { shard.writeTo(it) } }
+        }
+    }
+
+    // returns shards to be used instead of given ones, a shard is replaced by the instance already referenced by others
+    fun acquire(shards: List<LibraryShard>): List<LibraryShard> = synchronized(this) {
+        evictReleased()
+        shards.map { shard ->
+            val key = shard.key ?: return@map shard
+            val entry = shardsByKeys.getOrPut(key) { ShardEntry(shard.index) }
+            ++entry.references
+            if (entry.shard === shard.index) shard else LibraryShard(key, entry.shard)
+        }
+    }
+
+    fun release(shards: List<LibraryShard>) = synchronized(this) {
+        val now = System.currentTimeMillis()
+        shards.mapNotNull { it.key }.forEach { key ->
+            val entry = shardsByKeys[key] ?: return@forEach
+            if (--entry.references <= 0) entry.releasedAt = now
+        }
+        evictReleased()
+    }
+
+    private fun evictReleased() {
+        val now = System.currentTimeMillis()
+        shardsByKeys.values.removeAll { it.references <= 0 && now - it.releasedAt >= gracePeriodMillis }
+    }
+
+    // bytes without sharing are the bytes which would be retained if every project had its own copy of shards
+    fun getStatistics(): Statistics = synchronized(this) {
+        val referenced = shardsByKeys.values.filter { it.references > 0 }
+        Statistics(
+                shardsCount = referenced.size,
+                references = referenced.sumBy { it.references },
+                retainedBytes = referenced.map { it.shard.bytesCount }.sum(),
+                bytesWithoutSharing = referenced.map { it.references * it.shard.bytesCount }.sum()
+        )
+    }
+
+    private fun fileOf(key: String) = File(directory, "$key.shard")
+
+    private fun hashOf(file: File): String {
+        val digest = MessageDigest.getInstance("SHA-1")
+        val buffer = ByteArray(64 * 1024)
+        FileInputStream(file).use { input ->
+            while (true) {
+                val count = input.read(buffer)
+                if (count < 0) break
+                digest.update(buffer, 0, count)
+            }
+        }
+        return toHex(digest.digest())
+    }
+
+    private fun hashOf(bytes: ByteArray) = toHex(MessageDigest.getInstance("SHA-1").digest(bytes))
+
+    private fun toHex(hash: ByteArray) = hash.joinToString("") { String.format("%02x", it) }
+
+    companion object {
+        // length of hex SHA-1
+        val KEY_LENGTH = 40
+
+        private val DEFAULT_GRACE_PERIOD_MILLIS = 60 * 1000L
+
+        fun getInstance(): LibraryShardsCache {
+            return ServiceManager.getService(LibraryShardsCache::class.java)
+        }
+    }
+}
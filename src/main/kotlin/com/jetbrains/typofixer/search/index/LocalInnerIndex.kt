@@ -10,15 +10,29 @@ import java.util.*
 class LocalInnerIndex(
         signature: Signature,
         private val getWords: (wordsCollector: LocalDictionaryCollector, element: PsiElement) -> Set<String>
-) : InnerIndex(signature) {
+) : MutableInnerIndex(signature) {
 
     private val index = HashMap<Int, HashSet<String>>()
 
+    // rebuilt on every change, the index is small
+    private var occupancy = OccupancyBitmap(0)
+
     override fun getSize() = index.entries.sumBy { it.value.size }
-    fun clear() = index.clear()
+    override fun getBucketSize(signature: Int) = index[signature]?.size ?: 0
+    override fun mayContain(signature: Int) = occupancy.mayContain(signature)
+
+    fun clear() {
+        index.clear()
+        occupancy = OccupancyBitmap(0)
+    }
 
     override fun getWithDefault(signature: Int) = index[signature]?.asSequence()?.constrainOnce() ?: emptySequence()
 
+    override fun addAll(strings: Set<String>) {
+        super.addAll(strings)
+        occupancy = OccupancyBitmap.of(index.keys)
+    }
+
     override fun addAll(signature: Int, strings: Set<String>) {
         if (index[signature] == null) {
             index[signature] = hashSetOf()
@@ -27,14 +41,14 @@ class LocalInnerIndex(
     }
 
     fun refresh(element: PsiElement?) {
-        index.clear()
+        clear()
         element ?: return
         val collector = TypoFixerLanguageSupport.getSupport(element.language)?.getLocalDictionaryCollector() ?: return
         addAll(getWords(collector, element))
     }
 
     fun refreshWithWords(words: Set<String>) {
-        index.clear()
+        clear()
         addAll(words)
     }
 
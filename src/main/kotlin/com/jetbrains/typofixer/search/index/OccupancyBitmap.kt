@@ -0,0 +1,49 @@
+package com.jetbrains.typofixer.search.index
+
+/**
+ * Occupancy of the signature space by buckets of an index.
+ *
+ * The whole space of lengths and bases doesn't fit into a bitmap, so signatures are hashed into one
+ * with [BITS_PER_SIGNATURE] bits per signature of the index. A clear bit means there is no bucket for the signature,
+ * a set one may be a collision (about 6% of empty signatures), so the bucket is looked up as usual then.
+ */
+class OccupancyBitmap(signaturesCount: Int) {
+
+    private val shift: Int
+    private val words: LongArray
+
+    init {
+        var bitsCountLog = MIN_BITS_COUNT_LOG
+        while (bitsCountLog < MAX_BITS_COUNT_LOG && 1L shl bitsCountLog < BITS_PER_SIGNATURE.toLong() * signaturesCount) ++bitsCountLog
+        shift = Integer.SIZE - bitsCountLog
+        words = LongArray(1 shl (bitsCountLog - 6))
+    }
+
+    val bytesCount get() = 8L * words.size
+
+    fun add(signature: Int) {
+        val bit = bitOf(signature)
+        words[bit ushr 6] = words[bit ushr 6] or (1L shl bit)
+    }
+
+    fun mayContain(signature: Int): Boolean {
+        val bit = bitOf(signature)
+        return words[bit ushr 6] and (1L shl bit) != 0L
+    }
+
+    // multiplicative hashing, high bits of the product are the most mixed ones
+    private fun bitOf(signature: Int) = (signature * HASH_MULTIPLIER) ushr shift
+
+    companion object {
+        private val BITS_PER_SIGNATURE = 16
+        private val MIN_BITS_COUNT_LOG = 6
+        private val MAX_BITS_COUNT_LOG = 30
+        private val HASH_MULTIPLIER = -0x61c88647
+
+        fun of(signatures: Collection<Int>): OccupancyBitmap {
+            val bitmap = OccupancyBitmap(signatures.size)
+            signatures.forEach { bitmap.add(it) }
+            return bitmap
+        }
+    }
+}
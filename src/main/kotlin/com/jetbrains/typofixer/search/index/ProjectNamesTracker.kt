@@ -0,0 +1,202 @@
+package com.jetbrains.typofixer.search.index
+
+import com.intellij.openapi.fileEditor.FileDocumentManager
+import com.intellij.openapi.progress.ProgressIndicator
+import com.intellij.openapi.project.Project
+import com.intellij.openapi.roots.ProjectRootManager
+import com.intellij.openapi.vfs.VirtualFile
+import com.intellij.psi.*
+import com.intellij.psi.search.GlobalSearchScope
+import com.intellij.psi.search.PsiShortNamesCache
+import java.util.*
+
+/**
+ * Tracks project files changed since the project shard was built and turns them into changes of project names.
+ *
+ * Text a file had before its first change is remembered, so that the names it doesn't declare anymore are known.
+ * It is taken as it is, names are extracted from it in background, when the changes are collected.
+ * Such a name is removed only if nothing else in the project declares it (checked with stub indices).
+ * Deleted files and files moved out of source content declare no names.
+ * Package names are not tracked, they are updated by full refreshing only.
+ */
+class ProjectNamesTracker(private val project: Project) {
+
+    class Changes internal constructor(
+            val added: Map<CombinedIndex.IndexType, Set<String>>,
+            val removed: Map<CombinedIndex.IndexType, Set<String>>,
+            internal val files: Map<VirtualFile, FileChange>,
+            // stamps of the last changes of the files at the moment they were collected
+            internal val stamps: Map<VirtualFile, Long>
+    ) {
+        val isEmpty get() = added.values.all { it.isEmpty() } && removed.values.all { it.isEmpty() }
+    }
+
+    // state of a file before its first change since it was applied, old text is null for a file which didn't exist
+    // text is dropped as soon as the names are extracted from it
+    internal class FileChange(@Volatile private var oldText: CharSequence?, var stamp: Long) {
+        @Volatile
+        private var oldNames: Map<CombinedIndex.IndexType, Set<String>>? = null
+
+        fun getOldNames(extract: (CharSequence) -> Map<CombinedIndex.IndexType, Set<String>>) = oldNames ?: run {
+            val names = oldText?.let(extract) ?: emptyMap()
+            oldNames = names
+            oldText = null
+            names
+        }
+    }
+
+    // guarded by tracker monitor
+    private var modificationCount = 0L
+    private val changedFiles = LinkedHashMap<VirtualFile, FileChange>()
+    // files applied while the project shard is being rebuilt, the new shard may have been collected before their changes
+    private val appliedFiles = HashMap<VirtualFile, FileChange>()
+
+    private val fileIndex get() = ProjectRootManager.getInstance(project).fileIndex
+    private val namesCache get() = PsiShortNamesCache.getInstance(project)
+    private val projectScope get() = GlobalSearchScope.projectScope(project)
+
+    init {
+        PsiManager.getInstance(project).addPsiTreeChangeListener(object : PsiTreeChangeAdapter() {
+            override fun beforeChildrenChange(event: PsiTreeChangeEvent) {
+                event.file?.let { onBeforeFileChange(it) }
+            }
+
+            override fun beforeChildRemoval(event: PsiTreeChangeEvent) {
+                (event.child as? PsiFile)?.let { onBeforeFileChange(it) }
+            }
+
+            override fun beforeChildMovement(event: PsiTreeChangeEvent) {
+                (event.child as? PsiFile)?.let { onBeforeFileChange(it) }
+            }
+
+            override fun childAdded(event: PsiTreeChangeEvent) {
+                (event.child as? PsiFile)?.let { onFileAdded(it) }
+            }
+
+            override fun childMoved(event: PsiTreeChangeEvent) {
+                (event.child as? PsiFile)?.let { onFileAdded(it) }
+            }
+        }, project)
+    }
+
+    fun hasChanges() = synchronized(this) { changedFiles.isNotEmpty() }
+
+    // taken when the project shard starts being collected
+    fun getModificationCount() = synchronized(this) { modificationCount }
+
+    // files changed since the new project shard started being collected are applied to it again, the rest are in it already
+    fun onProjectShardRebuilt(collectionModificationCount: Long) = synchronized(this) {
+        appliedFiles.forEach { (file, change) ->
+            if (change.stamp > collectionModificationCount && file !in changedFiles) changedFiles[file] = change
+        }
+        appliedFiles.clear()
+        changedFiles.values.removeAll { it.stamp <= collectionModificationCount }
+    }
+
+    // must be called in read action, so that files are not changed until the changes are applied
+    fun collectChanges(indicator: ProgressIndicator?): Changes {
+        val (files, stamps) = synchronized(this) { LinkedHashMap(changedFiles).let { it to it.mapValues { it.value.stamp } } }
+        val added = HashMap<CombinedIndex.IndexType, MutableSet<String>>()
+        val removedCandidates = HashMap<CombinedIndex.IndexType, MutableSet<String>>()
+        files.forEach { (file, change) ->
+            indicator?.checkCanceled()
+            val oldNames = change.getOldNames { namesOf(file, it) }
+            val newNames = namesOf(file)
+            newNames.forEach { (type, names) -> added.getOrPut(type) { HashSet() }.addAll(names) }
+            oldNames.forEach { (type, names) ->
+                removedCandidates.getOrPut(type) { HashSet() }.addAll(names - (newNames[type] ?: emptySet()))
+            }
+        }
+        val removed = removedCandidates.mapValues { (type, names) ->
+            names.filter { indicator?.checkCanceled(); !isDeclared(type, it) }.toSet()
+        }
+        return Changes(added, removed, files, stamps)
+    }
+
+    // files changed again while the changes were collected stay changed, with the same old names
+    // applied files are kept only while the project shard is being rebuilt, deleted ones are dropped anyway
+    fun onChangesApplied(changes: Changes, isShardBeingRebuilt: Boolean) = synchronized(this) {
+        changes.files.forEach { (file, change) ->
+            if (change.stamp == changes.stamps[file]) changedFiles.remove(file)
+            if (isShardBeingRebuilt && file.isValid) appliedFiles[file] = change
+        }
+    }
+
+    // only the file is remembered here, names are extracted in background
+    private fun onBeforeFileChange(file: PsiFile) {
+        val virtualFile = file.virtualFile ?: return
+        if (!fileIndex.isInSourceContent(virtualFile)) return
+        onChange(virtualFile) { textOf(file) }
+    }
+
+    private fun onFileAdded(file: PsiFile) {
+        val virtualFile = file.virtualFile ?: return
+        if (!fileIndex.isInSourceContent(virtualFile)) return
+        onChange(virtualFile) { null }
+    }
+
+    private fun onChange(file: VirtualFile, getOldText: () -> CharSequence?) = synchronized(this) {
+        val stamp = ++modificationCount
+        val change = changedFiles[file]
+        if (change != null) change.stamp = stamp
+        else changedFiles[file] = FileChange(getOldText(), stamp)
+    }
+
+    // text psi of the file is built from, it is taken without walking the psi (last committed text is immutable)
+    private fun textOf(file: PsiFile): CharSequence {
+        val document = FileDocumentManager.getInstance().getCachedDocument(file.virtualFile)
+        return document?.let { PsiDocumentManager.getInstance(project).getLastCommittedText(it) } ?: file.viewProvider.contents
+    }
+
+    // names of the file if it had given text
+    private fun namesOf(file: VirtualFile, text: CharSequence): Map<CombinedIndex.IndexType, Set<String>> {
+        val psiFile = PsiFileFactory.getInstance(project).createFileFromText(file.name, file.fileType, text) ?: return emptyMap()
+        return namesOf(psiFile)
+    }
+
+    private fun namesOf(file: VirtualFile): Map<CombinedIndex.IndexType, Set<String>> {
+        if (!file.isValid || !fileIndex.isInSourceContent(file)) return emptyMap()
+        val psiFile = PsiManager.getInstance(project).findFile(file) ?: return emptyMap()
+        return namesOf(psiFile)
+    }
+
+    // the same names as stub indices provide for the file
+    private fun namesOf(file: PsiFile): Map<CombinedIndex.IndexType, Set<String>> {
+        val classes = (file as? PsiClassOwner)?.classes ?: return emptyMap()
+        val classNames = HashSet<String>()
+        val methodNames = HashSet<String>()
+        val fieldNames = HashSet<String>()
+        val kotlinFieldNames = HashSet<String>()
+        val classesToVisit = classes.toMutableList()
+        while (classesToVisit.isNotEmpty()) {
+            val psiClass = classesToVisit.removeAt(classesToVisit.size - 1)
+            psiClass.name?.let { classNames.add(it) }
+            psiClass.methods.filter { !it.isConstructor }.forEach { method ->
+                methodNames.add(method.name)
+                fieldNameFromGetterOrSetter(method.name)?.let { kotlinFieldNames.add(it) }
+            }
+            psiClass.fields.mapNotNull { it.name }.forEach { fieldNames.add(it) }
+            classesToVisit.addAll(psiClass.innerClasses)
+        }
+        return mapOf(
+                CombinedIndex.IndexType.CLASSNAME to classNames,
+                CombinedIndex.IndexType.NOT_CLASSNAME to methodNames + fieldNames,
+                CombinedIndex.IndexType.KOTLIN_SPECIFIC_FIELD to kotlinFieldNames
+        )
+    }
+
+    private fun isDeclared(type: CombinedIndex.IndexType, name: String) = when (type) {
+        CombinedIndex.IndexType.CLASSNAME -> namesCache.getClassesByName(name, projectScope).isNotEmpty()
+        CombinedIndex.IndexType.NOT_CLASSNAME -> isMethodOrFieldDeclared(name)
+        CombinedIndex.IndexType.KOTLIN_SPECIFIC_FIELD -> {
+            val capitalized = name[0].toUpperCase() + name.substring(1)
+            isMethodDeclared("get" + capitalized) || isMethodDeclared("set" + capitalized)
+        }
+        else -> true
+    }
+
+    private fun isMethodOrFieldDeclared(name: String) =
+            isMethodDeclared(name) || namesCache.getFieldsByName(name, projectScope).isNotEmpty()
+
+    private fun isMethodDeclared(name: String) = namesCache.getMethodsByName(name, projectScope).isNotEmpty()
+}
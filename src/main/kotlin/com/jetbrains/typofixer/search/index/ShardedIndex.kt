@@ -0,0 +1,73 @@
+package com.jetbrains.typofixer.search.index
+
+import java.util.*
+
+// library shard is reused while its key is the same, shards of directories without key are collected on every refreshing
+class LibraryShard(val key: String?, val index: FrozenIndex)
+
+// changes of project names made after the project shard was built, they are merged into the shard by compaction
+class ProjectDelta(val added: FrozenIndex, val removedMasks: Map<String, Int>) {
+    val size get() = added.size + removedMasks.size
+
+    companion object {
+        val EMPTY = ProjectDelta(FrozenIndex.EMPTY, emptyMap())
+    }
+}
+
+/**
+ * Global index snapshot: project shard with names from project sources
+ * and one shard per library root with names from its compiled classes.
+ * Project delta is laid over the project shard: removed types are hidden, added words are found along with the shards.
+ *
+ * A word found in several shards is returned once with merged types mask.
+ * Bucket sizes are sums over shards, so they may be greater than the number of distinct words.
+ */
+class ShardedIndex(
+        val projectShard: FrozenIndex,
+        val libraryShards: List<LibraryShard>,
+        val projectDelta: ProjectDelta = ProjectDelta.EMPTY
+) {
+
+    private val shards = listOf(projectShard, projectDelta.added) + libraryShards.map { it.index }
+
+    val size get() = shards.sumBy { it.size }
+
+    fun get(signature: Int): Sequence<String> = get(signature, ALL_TYPES).map { it.first }
+
+    fun get(signature: Int, typesMask: Int): Sequence<Pair<String, Int>> {
+        val found = shards.filter { it.getBucketSize(signature) != 0 }.map { shard ->
+            if (shard === projectShard) withoutRemoved(shard.get(signature, typesMask)) else shard.get(signature, typesMask)
+        }
+        return when (found.size) {
+            0 -> emptySequence()
+            1 -> found.single()
+            else -> {
+                val masksByWords = LinkedHashMap<String, Int>()
+                found.forEach { words ->
+                    words.forEach { (word, mask) -> masksByWords[word] = (masksByWords[word] ?: 0) or mask }
+                }
+                masksByWords.asSequence().map { it.key to it.value }
+            }
+        }
+    }
+
+    // false if no shard has a bucket for the signature, may be true for an empty one
+    fun mayContain(signature: Int) = shards.any { it.mayContain(signature) }
+
+    fun getBucketSize(signature: Int) = shards.sumBy { it.getBucketSize(signature) }
+    fun getBucketSize(signature: Int, typesMask: Int) = shards.sumBy { it.getBucketSize(signature, typesMask) }
+
+    fun contains(signature: Int, str: String) = get(signature).contains(str)
+
+    private fun withoutRemoved(words: Sequence<Pair<String, Int>>): Sequence<Pair<String, Int>> {
+        val removedMasks = projectDelta.removedMasks
+        if (removedMasks.isEmpty()) return words
+        return words.map { (word, mask) -> word to (mask and (removedMasks[word] ?: 0).inv()) }.filter { it.second != 0 }
+    }
+
+    companion object {
+        private val ALL_TYPES = -1
+
+        val EMPTY = ShardedIndex(FrozenIndex.EMPTY, emptyList())
+    }
+}
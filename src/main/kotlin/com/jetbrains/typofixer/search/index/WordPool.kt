@@ -0,0 +1,184 @@
+package com.jetbrains.typofixer.search.index
+
+import java.io.DataOutputStream
+import java.nio.ByteBuffer
+import java.nio.IntBuffer
+
+/**
+ * Append-only pool of words shared by the indices of one shard: the project shard of global index shares its pool with its delta,
+ * every library shard has a pool of its own, as library shards are shared by projects and stored separately.
+ * Each word is stored once in a pool and is referred by its id.
+ * Words consisting of Latin-1 chars take one byte per char, others are stored as UTF-16 and take two bytes per char.
+ *
+ * Words are added under pool monitor, [get] doesn't lock:
+ * id is published together with index snapshot after the word is stored.
+ * Words can be loaded from memory-mapped file, they are copied to heap only when new words are added.
+ */
+class WordPool {
+
+    // word `id` takes bytes from starts[id] until starts[id + 1], WIDE bit of starts[id] marks UTF-16 words
+    private class Arena(val bytes: ByteBuffer, val starts: IntBuffer, val size: Int) {
+        val bytesCount get() = starts[size] and START_MASK
+    }
+
+    @Volatile
+    private var arena = Arena(ByteBuffer.allocate(INITIAL_BYTES_CAPACITY), IntBuffer.allocate(INITIAL_WORDS_CAPACITY + 1), 0)
+
+    // open addressing, word ids by their hash codes, is built on first interning
+    private var table: IntArray? = null
+
+    val size get() = arena.size
+    val bytesCount get() = arena.bytesCount
+
+    fun get(id: Int): String {
+        val arena = arena
+        val start = arena.starts[id]
+        val from = start and START_MASK
+        val to = arena.starts[id + 1] and START_MASK
+        val isWide = start and WIDE != 0
+        if (!isWide && arena.bytes.hasArray()) {
+            return String(arena.bytes.array(), arena.bytes.arrayOffset() + from, to - from, Charsets.ISO_8859_1)
+        }
+        val chars = CharArray(if (isWide) (to - from) / 2 else to - from)
+        chars.indices.forEach { chars[it] = charAt(arena.bytes, from, isWide, it) }
+        return String(chars)
+    }
+
+    fun intern(words: Collection<String>): IntArray = synchronized(this) {
+        var bytes = arena.bytes
+        var starts = arena.starts
+        var size = arena.size
+        var table = table ?: buildTable(bytes, starts, size)
+        val ids = IntArray(words.size)
+        words.forEachIndexed { index, word ->
+            val existing = find(table, bytes, starts, word)
+            if (existing != NO_ID) {
+                ids[index] = existing
+                return@forEachIndexed
+            }
+
+            val isWide = word.any { it.toInt() > MAX_LATIN_1 }
+            val from = starts[size] and START_MASK
+            val to = from + if (isWide) 2 * word.length else word.length
+            if (to > bytes.capacity() || bytes.isReadOnly) bytes = copyOf(bytes, from, Math.max(to, 2 * bytes.capacity()))
+            if (size + 2 > starts.capacity() || starts.isReadOnly) starts = copyOf(starts, size + 1, 2 * starts.capacity())
+
+            if (isWide) {
+                word.forEachIndexed { i, c ->
+                    bytes.put(from + 2 * i, (c.toInt() shr 8).toByte())
+                    bytes.put(from + 2 * i + 1, c.toByte())
+                }
+            } else {
+                word.forEachIndexed { i, c -> bytes.put(from + i, c.toByte()) }
+            }
+            starts.put(size, if (isWide) from or WIDE else from)
+            starts.put(size + 1, to)
+
+            if (2 * (size + 1) > table.size) table = buildTable(bytes, starts, size, 2 * table.size)
+            insert(table, size, word.hashCode())
+            ids[index] = size++
+        }
+        this.table = table
+        arena = Arena(bytes, starts, size)
+        ids
+    }
+
+    // words with given ids are written with new ids equal to their positions in ids, then bytes are aligned to int
+    fun writeTo(output: DataOutputStream, ids: IntArray) {
+        val arena = arena
+        fun from(id: Int) = arena.starts[id] and START_MASK
+        fun to(id: Int) = arena.starts[id + 1] and START_MASK
+
+        output.writeInt(ids.size)
+        var start = 0
+        ids.forEach { id ->
+            output.writeInt(start or (arena.starts[id] and WIDE))
+            start += to(id) - from(id)
+        }
+        output.writeInt(start)
+        ids.forEach { id -> (from(id) until to(id)).forEach { output.writeByte(arena.bytes[it].toInt()) } }
+        repeat(paddingOf(start)) { output.writeByte(0) }
+    }
+
+    // pool must be empty, buffer is positioned after the words
+    fun readFrom(buffer: ByteBuffer) = synchronized(this) {
+        check(arena.size == 0) { "Words can be loaded into empty pool only" }
+        val size = buffer.int
+        val starts = buffer.sliceInts(size + 1)
+        val bytesCount = starts[size]
+        val bytes = buffer.sliceBytes(bytesCount)
+        buffer.position(buffer.position() + paddingOf(bytesCount))
+        table = null
+        arena = Arena(bytes, starts, size)
+    }
+
+    private fun find(table: IntArray, bytes: ByteBuffer, starts: IntBuffer, word: String): Int {
+        var slot = slotOf(word.hashCode(), table.size)
+        while (table[slot] != NO_ID) {
+            if (wordEquals(bytes, starts, table[slot], word)) return table[slot]
+            slot = (slot + 1) % table.size
+        }
+        return NO_ID
+    }
+
+    private fun insert(table: IntArray, id: Int, hash: Int) {
+        var slot = slotOf(hash, table.size)
+        while (table[slot] != NO_ID) slot = (slot + 1) % table.size
+        table[slot] = id
+    }
+
+    private fun buildTable(bytes: ByteBuffer, starts: IntBuffer, size: Int, minTableSize: Int = 0): IntArray {
+        var tableSize = Math.max(2 * INITIAL_WORDS_CAPACITY, minTableSize)
+        while (tableSize < 2 * (size + 1)) tableSize *= 2
+        val table = IntArray(tableSize) { NO_ID }
+        (0 until size).forEach { insert(table, it, hashOf(bytes, starts, it)) }
+        return table
+    }
+
+    private fun wordEquals(bytes: ByteBuffer, starts: IntBuffer, id: Int, word: String): Boolean {
+        val isWide = starts[id] and WIDE != 0
+        val from = starts[id] and START_MASK
+        val to = starts[id + 1] and START_MASK
+        if (to - from != if (isWide) 2 * word.length else word.length) return false
+        return word.indices.all { charAt(bytes, from, isWide, it) == word[it] }
+    }
+
+    // same as String.hashCode
+    private fun hashOf(bytes: ByteBuffer, starts: IntBuffer, id: Int): Int {
+        val isWide = starts[id] and WIDE != 0
+        val from = starts[id] and START_MASK
+        val to = starts[id + 1] and START_MASK
+        val length = if (isWide) (to - from) / 2 else to - from
+        return (0 until length).fold(0) { hash, i -> 31 * hash + charAt(bytes, from, isWide, i).toInt() }
+    }
+
+    private fun charAt(bytes: ByteBuffer, from: Int, isWide: Boolean, index: Int) =
+            if (isWide) ((bytes[from + 2 * index].toInt() and 0xFF shl 8) or (bytes[from + 2 * index + 1].toInt() and 0xFF)).toChar()
+            else (bytes[from + index].toInt() and 0xFF).toChar()
+
+    private fun slotOf(hash: Int, tableSize: Int) = (hash and Int.MAX_VALUE) % tableSize
+
+    private fun copyOf(bytes: ByteBuffer, count: Int, capacity: Int): ByteBuffer {
+        val result = ByteBuffer.allocate(capacity)
+        (0 until count).forEach { result.put(it, bytes[it]) }
+        return result
+    }
+
+    private fun copyOf(ints: IntBuffer, count: Int, capacity: Int): IntBuffer {
+        val result = IntBuffer.allocate(capacity)
+        (0 until count).forEach { result.put(it, ints[it]) }
+        return result
+    }
+
+    private fun paddingOf(bytesCount: Int) = (4 - bytesCount % 4) % 4
+
+    companion object {
+        private val NO_ID = -1
+        private val WIDE = Int.MIN_VALUE
+        private val START_MASK = Int.MAX_VALUE
+        private val MAX_LATIN_1 = 0xFF
+
+        private val INITIAL_WORDS_CAPACITY = 1024
+        private val INITIAL_BYTES_CAPACITY = 16 * INITIAL_WORDS_CAPACITY
+    }
+}
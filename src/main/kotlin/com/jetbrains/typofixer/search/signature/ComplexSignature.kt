@@ -5,95 +5,68 @@ package com.jetbrains.typofixer.search.signature
  */
 
 
-private typealias BaseMutation = (Int, Int) -> Int
-
-
-// todo: rewrite it
+/**
+ * Range of a word is made of its base with some bits flipped and lengths differing by at most maxRoundedError.
+ *
+ * Flipping `k` bits of a base is taken from a template of all masks with `k` bits, which doesn't depend on the word.
+ * For a base flipped by mask `f` with `added` bits out of the base and `removed` bits of it
+ * and length differing by `lengthError`, the word may be in range if
+ * - `added + removed <= maxRoundedError` for the same length,
+ * - `added + max(lengthError, removed) <= maxRoundedError` for a shorter word,
+ * - `removed + max(lengthError, added) <= maxRoundedError` for a longer word,
+ * as every removed char can also remove a bit of the base and every added char can add one.
+ * The signature goes to the group of min possible error of such a word, see [minPossibleError].
+ * Groups are written separately, so every group enumerates only templates which may give it signatures.
+ */
 class ComplexSignature : SignatureBase() {
 
-    // returns list of signature sets.
-    // set with index k can only contain signatures corresponding to words with error >= k
-    override fun <T> doGetRange(base: Int, length: Int, maxRoundedError: Int, makeResult: (Int, Int) -> T): List<HashSet<T>> {
-        // returns min value of real error which can be be produced by word with given baseError and lengthError
-        fun errorsToMinRealError(baseError: Int, lengthError: Int): Int {
-            return if (lengthError >= baseError) lengthError else (baseError + lengthError + 1) / 2
-        }
-
-        val resultingRange = Array(maxRoundedError + 1) { HashSet<T>() }
-
-        // returns list of signature sets.
-        // result[0] == startingBases
-        // result[i] contains only signatures which could be made from startingBases by applying given type of mutation i times
-        // result[i] cannot intercept with result[j] when i != j
-        fun basesWithMutation(maxMutationCount: Int, startingBases: HashSet<Int>, mutate: BaseMutation, additionalRestricted: List<HashSet<Int>> = listOf()): List<HashSet<Int>> {
-            val bases = Array(maxMutationCount + 1) { HashSet<Int>() }
-            bases[0] = startingBases
-            val restricted = hashSetOf<Int>()
-            for (index in 1..maxMutationCount) {
-                restricted.addAll(bases[index - 1])
-                bases[index - 1]
-                        .flatMap { mutateBase(it, mutate) }
-                        .filter { bs -> bs !in restricted && additionalRestricted.all { restr -> bs !in restr } }
-                        .forEach { bases[index].add(it) }
-            }
-            return bases.toList()
-        }
-
-        val positiveMutation = { bs: Int, shift: Int -> bs or (1 shl shift) }
-        val negativeMutation = { bs: Int, shift: Int -> bs and (1 shl shift).inv() }
-        val bidirectionalMutation = { bs: Int, shift: Int -> bs xor (1 shl shift) }
-
-        // result[i][j] contains only signatures which could be made from base by applying given type of mutation i times
-        // and then bidirectionalMutation j times
-        // but result[i][j] cannot intercept with result[k][l] when i <= k and j <= l
-        fun baseMutationsWithFirstK(mutation: BaseMutation): List<List<HashSet<Int>>> {
-            val basicMutations = basesWithMutation(maxRoundedError, hashSetOf(base), mutation)
-            val restricted = ArrayList<HashSet<Int>>(maxRoundedError + 1)
-            return basicMutations.mapIndexed { basicMutationCount, bases ->
-                val toReturn = basesWithMutation(maxRoundedError - basicMutationCount, bases, bidirectionalMutation, restricted)
-                if (restricted.isNotEmpty()) restricted.removeAt(restricted.size - 1)
-                restricted.forEachIndexed { index, set -> set.addAll(toReturn[index]) }
-                toReturn
-            }
-        }
-
-        val forBiggerLength = baseMutationsWithFirstK(positiveMutation)
-        val forLessLength = baseMutationsWithFirstK(negativeMutation)
-
-        for (lengthError in (0..maxRoundedError)) {
-            val maxBidirectionalError = maxRoundedError - lengthError
-
-            fun updateResultsForLengthError(newLength: Int, allBases: List<List<HashSet<Int>>>) {
-                for (startingBaseError in 0..lengthError) {
-                    val bases = allBases[startingBaseError]
-                    for (bidirectionalBaseError in 0..maxBidirectionalError) {
-                        resultingRange[errorsToMinRealError(startingBaseError + bidirectionalBaseError, lengthError)]
-                                .addAll(bases[bidirectionalBaseError].map { makeResult(it, newLength) })
+    override fun doGetRange(base: Int, length: Int, maxRoundedError: Int, error: Int, range: SignatureRange) {
+        val maxFlipsCount = Math.min(maxRoundedError, baseShift)
+        for (flipsCount in 0..maxFlipsCount) {
+            // only masks which may make a word with this min possible error are enumerated
+            if ((0..maxRoundedError).none { minPossibleError(flipsCount, it) == error }) continue
+            val templates = flipTemplates[flipsCount].value
+            for (flips in templates) {
+                val added = Integer.bitCount(flips and base.inv())
+                val removed = flipsCount - added
+                val mutated = base xor flips
+                for (lengthError in 0..maxRoundedError) {
+                    if (minPossibleError(flipsCount, lengthError) != error) continue
+                    if (lengthError == 0) {
+                        range.add(error, combine(mutated, length))
+                        continue
+                    }
+                    if (length - lengthError > 0 && added + Math.max(lengthError, removed) <= maxRoundedError) {
+                        range.add(error, combine(mutated, length - lengthError))
+                    }
+                    if (length + lengthError < lengthUpperBound && removed + Math.max(lengthError, added) <= maxRoundedError) {
+                        range.add(error, combine(mutated, length + lengthError))
                     }
                 }
             }
-
-            if (length - lengthError > 0) {
-                updateResultsForLengthError(length - lengthError, forLessLength)
-            }
-            if (length + lengthError < lengthUpperBound) {
-                updateResultsForLengthError(length + lengthError, forBiggerLength)
-            }
         }
+    }
 
-        for (error in resultingRange.indices.reversed()) {
-            for (smallerError in 0 until error) {
-                resultingRange[error] = resultingRange[error].filter { it !in resultingRange[smallerError] }.toHashSet()
+    companion object {
+        // min error of a word with given count of flipped base bits and length error
+        internal fun minPossibleError(flipsCount: Int, lengthError: Int) =
+                if (lengthError >= flipsCount) lengthError else (flipsCount + lengthError + 1) / 2
+
+        // masks with given count of bits among base bits, are built once on first use
+        private val flipTemplates = Array(baseShift + 1) { bitsCount -> lazy { masksWithBitCount(bitsCount) } }
+
+        // Gosper's hack: next greater int with the same count of bits
+        private fun masksWithBitCount(bitsCount: Int): IntArray {
+            if (bitsCount == 0) return intArrayOf(0)
+            val masks = ArrayList<Int>()
+            var mask = (1 shl bitsCount) - 1
+            while (mask < 1 shl baseShift) {
+                masks.add(mask)
+                val lowest = mask and -mask
+                val carried = mask + lowest
+                mask = (((carried xor mask) ushr 2) / lowest) or carried
             }
+            return masks.toIntArray()
         }
-        return resultingRange.toList()
-    }
-
-    private fun mutateBase(base: Int, mutate: (Int, Int) -> Int): HashSet<Int> {
-        return HashSet((0 until baseShift)
-                .mapNotNull {
-                    val mutated = mutate(base, it)
-                    if (mutated == base) null else mutated
-                })
     }
-}
\ No newline at end of file
+}
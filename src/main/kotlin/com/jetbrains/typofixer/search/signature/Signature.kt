@@ -7,50 +7,57 @@ package com.jetbrains.typofixer.search.signature
 interface Signature {
     fun get(str: String): Int
     fun getRange(str: String, maxRoundedError: Int): List<HashSet<Int>>
+
+    // the same range written into given buffers, group by group when they are read
+    fun getRange(str: String, maxRoundedError: Int, range: SignatureRange)
 }
 
 
-// works only for maxRoundedError <= 2!! too big range otherwise
 abstract class SignatureBase : Signature {
 
-    abstract protected fun <T> doGetRange(base: Int, length: Int, maxRoundedError: Int, makeResult: (Int, Int) -> T)
-            : List<HashSet<T>>
+    // writes signatures of the range with given min possible error
+    abstract protected fun doGetRange(base: Int, length: Int, maxRoundedError: Int, error: Int, range: SignatureRange)
 
-    override fun get(str: String): Int {
-        val (base, length) = getRaw(str)
-        return combine(base, length)
-    }
+    override fun get(str: String) = combine(getBase(str), getLength(str))
 
-    private fun getRaw(str: String): Pair<Int, Int> {
-        val base = str.fold(0) { acc: Int, it -> acc or charMask(it) }
-        val length = Math.min(lengthUpperBound - 1, str.length)
-        return Pair(base, length)
+    private fun getBase(str: String): Int {
+        var base = 0
+        for (c in str) base = base or charMask(c)
+        return base
     }
 
-    private fun combine(base: Int, length: Int): Int {
-        return (length shl baseShift) + base
-    }
+    private fun getLength(str: String) = Math.min(lengthUpperBound - 1, str.length)
 
-    private fun split(signature: Int): Pair<Int, Int> {
-        val base = signature and BASE_MASK
-        val length = signature shr baseShift
-        return Pair(base, length)
+    protected fun combine(base: Int, length: Int): Int {
+        return (length shl baseShift) + base
     }
 
     // should return nonempty collection
     override fun getRange(str: String, maxRoundedError: Int): List<HashSet<Int>> {
-        val (base, length) = getRaw(str)
-        return doGetRange(base, length, maxRoundedError, this::combine)
+        val range = SignatureRange()
+        getRange(str, maxRoundedError, range)
+        return range.toSets()
     }
 
+    override fun getRange(str: String, maxRoundedError: Int, range: SignatureRange) =
+            getRange(getBase(str), getLength(str), maxRoundedError, range)
+
+    private fun getRange(base: Int, length: Int, maxRoundedError: Int, range: SignatureRange) =
+            range.reset(maxRoundedError) { error -> doGetRange(base, length, maxRoundedError, error, range) }
+
     fun getRawRange(base: Int, length: Int, maxRoundedError: Int): List<HashSet<Pair<Int, Int>>> {
-        return doGetRange(base, length, maxRoundedError, ::Pair)
+        val range = SignatureRange()
+        getRange(base, length, maxRoundedError, range)
+        return range.toSets().map { signatures -> signatures.mapTo(HashSet()) { Pair(it and BASE_MASK, it ushr baseShift) } }
     }
 
     companion object {
         protected @JvmStatic val lengthUpperBound = 1 shl 7
 
-        protected fun charMask(c: Char) = CHAR_MASK[c.toLowerCase()] ?: (c.toInt() % baseShift)
+        // masks of ascii chars are taken from the array, the rest are looked up by lower cased chars
+        protected fun charMask(c: Char) = if (c.toInt() < ASCII_SIZE) ASCII_CHAR_MASKS[c.toInt()] else lookUpCharMask(c)
+
+        private fun lookUpCharMask(c: Char) = CHAR_MASK[c.toLowerCase()] ?: (c.toInt() % baseShift)
 
         protected val CHAR_MASK = hashMapOf(
                 'a' to (1 shl 2),
@@ -115,5 +122,8 @@ abstract class SignatureBase : Signature {
 
         val baseShift = 25
         protected val BASE_MASK = ((1 shl baseShift) - 1)
+
+        private val ASCII_SIZE = 128
+        private val ASCII_CHAR_MASKS = IntArray(ASCII_SIZE) { lookUpCharMask(it.toChar()) }
     }
 }
@@ -0,0 +1,70 @@
+package com.jetbrains.typofixer.search.signature
+
+/**
+ * Signatures of a range grouped by min possible error of the words having them.
+ * Every group is written into its own int buffer, buffers are reused by the next range written into the same instance.
+ * A signature is written into one group only.
+ *
+ * Groups are written lazily, each one when it is first read, so groups of big errors cost nothing if the search stops before them.
+ * Signatures rejected by [mayHaveBucket] (e.g. by occupancy bitmaps of the index) are not written at all.
+ */
+class SignatureRange(private val mayHaveBucket: (signature: Int) -> Boolean = { true }) {
+
+    private var buffers = emptyArray<IntArray>()
+    private var sizes = IntArray(0)
+
+    private var writeGroup: (error: Int) -> Unit = {}
+    private var groupsWrittenCount = 0
+
+    var maxRoundedError = -1
+        private set
+
+    var prunedCount = 0
+        private set
+
+    val size get() = (0..maxRoundedError).sumBy { size(it) }
+
+    fun reset(maxRoundedError: Int, writeGroup: (error: Int) -> Unit) {
+        if (buffers.size <= maxRoundedError) {
+            buffers = Array(maxRoundedError + 1) { buffers.getOrNull(it) ?: IntArray(INITIAL_CAPACITY) }
+            sizes = IntArray(maxRoundedError + 1)
+        }
+        sizes.fill(0)
+        prunedCount = 0
+        this.maxRoundedError = maxRoundedError
+        this.writeGroup = writeGroup
+        groupsWrittenCount = 0
+    }
+
+    fun add(error: Int, signature: Int) {
+        if (!mayHaveBucket(signature)) {
+            ++prunedCount
+            return
+        }
+        val size = sizes[error]
+        if (size == buffers[error].size) buffers[error] = buffers[error].copyOf(2 * size)
+        buffers[error][size] = signature
+        sizes[error] = size + 1
+    }
+
+    fun size(error: Int): Int {
+        while (groupsWrittenCount <= error) writeGroup(groupsWrittenCount++)
+        return sizes[error]
+    }
+
+    fun get(error: Int, index: Int) = buffers[error][index]
+
+    inline fun forEach(error: Int, action: (signature: Int) -> Unit) {
+        for (index in 0 until size(error)) action(get(error, index))
+    }
+
+    fun toSets(): List<HashSet<Int>> = (0..maxRoundedError).map { error ->
+        val signatures = HashSet<Int>(2 * size(error))
+        forEach(error) { signatures.add(it) }
+        signatures
+    }
+
+    companion object {
+        private val INITIAL_CAPACITY = 64
+    }
+}
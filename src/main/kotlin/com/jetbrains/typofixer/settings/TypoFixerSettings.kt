@@ -24,4 +24,10 @@ class TypoFixerSettings : PersistentStateComponent<TypoFixerSettings> {
 
     var maxMillisForFind = 50L
     var maxMillisForResolve = 400L
+    // search isn't escalated to a bigger max error once this time since the find start is over
+    var maxMillisForEscalation = 200L
+    // max count of candidates read from index during one search
+    var maxCandidatesForFind = 20000
+    // max count of results kept by one search, the worst ones are dropped
+    var maxResultsForFind = 100
 }
@@ -10,6 +10,14 @@ object TypoFixerStatistics {
     val timesWordReplaced get() = statisticsComponent.timesWordReplaced
     val timesFindAbortedBecauseOfTimeLimits get() = statisticsComponent.timesFindAbortedBecauseOfTimeLimits
     val timesResolveAbortedBecauseOfTimeLimits get() = statisticsComponent.timesResolveAbortedBecauseOfTimeLimits
+    val candidatesCheckedByPrefilter get() = statisticsComponent.candidatesCheckedByPrefilter
+    val candidatesRejectedByPrefilter get() = statisticsComponent.candidatesRejectedByPrefilter
+    val bucketsPlanned get() = statisticsComponent.bucketsPlanned
+    val emptyBucketsSkipped get() = statisticsComponent.emptyBucketsSkipped
+    val bucketsSkippedBecauseOfBudget get() = statisticsComponent.bucketsSkippedBecauseOfBudget
+    val timesCandidatesBudgetExhausted get() = statisticsComponent.timesCandidatesBudgetExhausted
+    val timesSearchedWithTypesMissing get() = statisticsComponent.timesSearchedWithTypesMissing
+    val timesSearchEscalated get() = statisticsComponent.timesSearchEscalated
 
     fun onTypoResolverCreated() {
         ++statisticsComponent.timesResolverCreated
@@ -27,6 +35,29 @@ object TypoFixerStatistics {
     fun onResolveAbortedBecauseOfTimeLimits() {
         ++statisticsComponent.timesResolveAbortedBecauseOfTimeLimits
     }
+
+    fun onCandidatesPrefiltered(checked: Int, rejected: Int) {
+        statisticsComponent.candidatesCheckedByPrefilter += checked
+        statisticsComponent.candidatesRejectedByPrefilter += rejected
+    }
+
+    fun onBucketsPlanned(planned: Int, skippedAsEmpty: Int, skippedBecauseOfBudget: Int) {
+        statisticsComponent.bucketsPlanned += planned
+        statisticsComponent.emptyBucketsSkipped += skippedAsEmpty
+        statisticsComponent.bucketsSkippedBecauseOfBudget += skippedBecauseOfBudget
+    }
+
+    fun onCandidatesBudgetExhausted() {
+        ++statisticsComponent.timesCandidatesBudgetExhausted
+    }
+
+    fun onSearchedWithTypesMissing() {
+        ++statisticsComponent.timesSearchedWithTypesMissing
+    }
+
+    fun onSearchEscalated() {
+        ++statisticsComponent.timesSearchEscalated
+    }
 }
 
 // not exact because of concurrency
@@ -52,4 +83,12 @@ class TypoFixerStatisticsComponent : PersistentStateComponent<TypoFixerStatistic
     var timesWordReplaced: Int = 0
     var timesFindAbortedBecauseOfTimeLimits: Int = 0
     var timesResolveAbortedBecauseOfTimeLimits: Int = 0
+    var candidatesCheckedByPrefilter: Long = 0
+    var candidatesRejectedByPrefilter: Long = 0
+    var bucketsPlanned: Long = 0
+    var emptyBucketsSkipped: Long = 0
+    var bucketsSkippedBecauseOfBudget: Long = 0
+    var timesCandidatesBudgetExhausted: Int = 0
+    var timesSearchedWithTypesMissing: Int = 0
+    var timesSearchEscalated: Int = 0
 }
\ No newline at end of file
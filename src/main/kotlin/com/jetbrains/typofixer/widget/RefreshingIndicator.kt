@@ -5,6 +5,7 @@ import com.intellij.openapi.wm.StatusBar
 import com.intellij.openapi.wm.StatusBarWidget
 import com.intellij.util.Consumer
 import com.jetbrains.typofixer.search.Searcher
+import com.jetbrains.typofixer.search.index.CombinedIndex
 import java.awt.event.MouseEvent
 import javax.swing.JLabel
 
@@ -33,12 +34,18 @@ class RefreshingIndicator(val searcher: Searcher) : CustomStatusBarWidget, Statu
     fun update() {
         if (!searcher.project.isInitialized) return
         myLabel.text = when (searcher.getStatus()) {
-            Searcher.Status.INDEX_REFRESHING -> NOT_ACTIVE_TEXT
+            Searcher.Status.INDEX_REFRESHING -> NOT_ACTIVE_TEXT + getReadyTypesText()
             Searcher.Status.DUMB_MODE -> NOT_ACTIVE_TEXT
-            Searcher.Status.ACTIVE -> ACTIVE_TEXT + " ${searcher.getStatistics().first}"
+            Searcher.Status.ACTIVE -> ACTIVE_TEXT + " ${searcher.getStatistics().indexSize}"
         }
     }
 
+    // some types may be ready before the whole index
+    private fun getReadyTypesText(): String {
+        val readyTypes = CombinedIndex.IndexType.globalValues() - searcher.getMissingIndexTypes()
+        return if (readyTypes.isEmpty()) "" else ", ready: " + readyTypes.joinToString { it.name.toLowerCase() }
+    }
+
     override fun getPresentation(platformType: StatusBarWidget.PlatformType) = this
 
     override fun install(statusBar: StatusBar) {  }
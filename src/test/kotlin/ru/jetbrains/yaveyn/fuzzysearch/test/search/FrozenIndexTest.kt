@@ -0,0 +1,210 @@
+package ru.jetbrains.yaveyn.fuzzysearch.test.search
+
+import com.jetbrains.typofixer.search.DLSearcher
+import com.jetbrains.typofixer.search.index.BucketsBuilder
+import com.jetbrains.typofixer.search.index.CombinedIndex
+import com.jetbrains.typofixer.search.index.FrozenIndex
+import com.jetbrains.typofixer.search.index.LibraryShard
+import com.jetbrains.typofixer.search.index.ProjectDelta
+import com.jetbrains.typofixer.search.index.ShardedIndex
+import com.jetbrains.typofixer.search.index.WordPool
+import com.jetbrains.typofixer.search.signature.ComplexSignature
+import com.natpryce.hamkrest.assertion.assert
+import com.natpryce.hamkrest.equalTo
+import com.natpryce.hamkrest.lessThan
+import org.junit.Ignore
+import org.junit.Test
+import java.io.*
+import java.nio.ByteBuffer
+import java.util.zip.GZIPInputStream
+import java.util.zip.GZIPOutputStream
+import kotlin.system.measureNanoTime
+
+/**
+ * @author bronti.
+ */
+class FrozenIndexTest {
+
+    private val signature = ComplexSignature()
+
+    private val buckets = TestData.bigFileBuckets(signature)
+
+    // words of odd length are also marked with the second type
+    private val typedBuckets = buckets.mapValues { it.value.associate { it to if (it.length % 2 == 0) 1 else 3 } }
+
+    @Test
+    fun testAllWordsDecoded() {
+        val index = FrozenIndex.freeze(typedBuckets, WordPool())
+        assert.that(index.size, equalTo(buckets.values.sumBy { it.size }))
+        buckets.forEach { (signature, words) ->
+            assert.that(index.getBucketSize(signature), equalTo(words.size))
+            assert.that(index.get(signature).toSet(), equalTo(words))
+        }
+    }
+
+    @Test
+    fun testContains() {
+        val index = FrozenIndex.freeze(typedBuckets, WordPool())
+        buckets.forEach { (signature, words) ->
+            words.forEach { assert.that(index.contains(signature, it), equalTo(true)) }
+            words.map { it + "_" }.filter { it !in words }.forEach { assert.that(index.contains(signature, it), equalTo(false)) }
+        }
+        assert.that(index.get(buckets.keys.max()!! + 1).count(), equalTo(0))
+    }
+
+    @Test
+    fun testTypes() {
+        val index = FrozenIndex.freeze(typedBuckets, WordPool())
+        buckets.forEach { (signature, words) ->
+            val secondTypeWords = words.filter { it.length % 2 != 0 }
+            assert.that(index.get(signature, 1).map { it.first }.toSet(), equalTo(words))
+            assert.that(index.get(signature, 2).toSet(), equalTo(secondTypeWords.map { it to 2 }.toSet()))
+            assert.that(index.getBucketSize(signature, 2), equalTo(secondTypeWords.size))
+            assert.that(index.get(signature, 4).count(), equalTo(0))
+        }
+    }
+
+    @Test
+    fun testWriteAndRead() {
+        val index = FrozenIndex.freeze(typedBuckets, WordPool())
+        val bytes = ByteArrayOutputStream()
+        DataOutputStream(bytes).use { index.writeTo(it) }
+
+        val pool = WordPool()
+        val readIndex = FrozenIndex.readFrom(ByteBuffer.wrap(bytes.toByteArray()).asReadOnlyBuffer(), pool)
+        assert.that(readIndex.size, equalTo(index.size))
+        typedBuckets.forEach { (signature, words) ->
+            assert.that(readIndex.get(signature, 3).toSet(), equalTo(words.entries.map { it.key to it.value }.toSet()))
+        }
+
+        // loaded words are copied on interning
+        val newIds = pool.intern(listOf("someNewWord") + buckets.values.first())
+        assert.that(pool.get(newIds[0]), equalTo("someNewWord"))
+        assert.that(newIds.drop(1).map { pool.get(it) }, equalTo(buckets.values.first().toList()))
+        assert.that(pool.size, equalTo(index.size + 1))
+    }
+
+    @Test
+    fun testWordPool() {
+        val pool = WordPool()
+        val words = listOf("some", "other", "some", "caf\u00e9", "\u0441\u043b\u043e\u0432\u043e", "other")
+        val ids = pool.intern(words)
+        assert.that(pool.size, equalTo(4))
+        assert.that(ids[0], equalTo(ids[2]))
+        assert.that(ids[1], equalTo(ids[5]))
+        assert.that(ids.map { pool.get(it) }, equalTo(words))
+        assert.that(pool.intern(words.reversed()).toList(), equalTo(ids.reversed()))
+    }
+
+    @Test
+    fun testShards() {
+        // every word is in the project shard with type 1, words of odd length are also in the library shard with type 2
+        val projectShard = FrozenIndex.freeze(buckets.mapValues { it.value.associate { it to 1 } }, WordPool())
+        val libraryBuckets = buckets.mapValues { it.value.filter { it.length % 2 != 0 }.associate { it to 2 } }.filterValues { it.isNotEmpty() }
+        val libraryShard = FrozenIndex.freeze(libraryBuckets, WordPool())
+        val index = ShardedIndex(projectShard, listOf(LibraryShard("key", libraryShard)))
+
+        typedBuckets.forEach { (signature, words) ->
+            assert.that(index.get(signature).toList().sorted(), equalTo(words.keys.sorted()))
+            assert.that(index.get(signature, 3).toSet(), equalTo(words.entries.map { it.key to it.value }.toSet()))
+            assert.that(index.getBucketSize(signature, 2), equalTo(words.values.count { it == 3 }))
+            words.keys.forEach { assert.that(index.contains(signature, it), equalTo(true)) }
+        }
+    }
+
+    @Test
+    fun testProjectDelta() {
+        val projectShard = FrozenIndex.freeze(typedBuckets, WordPool())
+        // second type of words of odd length is removed, words of even length are added with the second type
+        val removedMasks = typedBuckets.values.flatMap { it.keys }.filter { it.length % 2 != 0 }.associate { it to 2 }
+        val added = FrozenIndex.freeze(buckets.mapValues { it.value.filter { it.length % 2 == 0 }.associate { it to 2 } }, WordPool())
+        val index = ShardedIndex(projectShard, emptyList(), ProjectDelta(added, removedMasks))
+
+        buckets.forEach { (signature, words) ->
+            assert.that(index.get(signature, 3).toSet(), equalTo(words.map { it to if (it.length % 2 == 0) 3 else 1 }.toSet()))
+            assert.that(index.get(signature, 2).map { it.first }.toSet(), equalTo(words.filter { it.length % 2 == 0 }.toSet()))
+        }
+    }
+
+    @Test
+    fun testOccupancy() {
+        val index = FrozenIndex.freeze(typedBuckets, WordPool())
+        buckets.keys.forEach { assert.that(index.mayContain(it), equalTo(true)) }
+
+        // signatures of ranges of the words are mostly empty
+        val emptySignatures = buckets.values.flatten().take(100)
+                .flatMap { signature.getRange(it, 2).flatten() }
+                .filter { it !in buckets }
+                .toSet()
+        val collisionsCount = emptySignatures.count { index.mayContain(it) }
+        assert.that(collisionsCount < emptySignatures.size / 10, equalTo(true))
+    }
+
+    @Test
+    fun testMergedBuilders() {
+        val words = buckets.values.flatten()
+        // every job streams its names into its own builder, some names are found by several jobs
+        val classNames = BucketsBuilder(signature)
+        val otherNames = BucketsBuilder(signature)
+        words.forEach { if (it.length % 2 == 0) classNames.add(CombinedIndex.IndexType.CLASSNAME, it) }
+        words.forEach { otherNames.add(CombinedIndex.IndexType.NOT_CLASSNAME, it) }
+        words.forEach { otherNames.add(CombinedIndex.IndexType.NOT_CLASSNAME, it) }
+        assert.that(otherNames.size, equalTo(words.size))
+
+        val index = BucketsBuilder.merge(listOf(classNames, otherNames), signature).freeze(WordPool())
+        val bothTypes = CombinedIndex.IndexType.CLASSNAME.mask or CombinedIndex.IndexType.NOT_CLASSNAME.mask
+        assert.that(index.size, equalTo(words.size))
+        buckets.forEach { (signature, words) ->
+            val expected = words.map { it to if (it.length % 2 == 0) bothTypes else CombinedIndex.IndexType.NOT_CLASSNAME.mask }
+            assert.that(index.get(signature, bothTypes).toSet(), equalTo(expected.toSet()))
+        }
+    }
+
+    // compares with buckets compressed by java serialization inside of GZIP stream (used by version 14):
+    // bytes of the written index, pool included, and time of decoding all the buckets of the read one
+    @Ignore
+    @Test
+    fun testCompareWithGzip() {
+        val bytes = ByteArrayOutputStream()
+        DataOutputStream(bytes).use { FrozenIndex.freeze(typedBuckets, WordPool()).writeTo(it) }
+        val frozenBytes = bytes.toByteArray()
+        val index = FrozenIndex.readFrom(ByteBuffer.wrap(frozenBytes).asReadOnlyBuffer(), WordPool())
+        val gzipBuckets = buckets.mapValues { gzip(it.value) }
+        val gzipBytes = gzipBuckets.values.sumBy { it.second.size }
+
+        // the best of several runs, the first ones warm up
+        fun time(action: () -> Int) = (1..5).map {
+            var decoded = 0
+            val time = measureNanoTime { decoded = action() }
+            assert.that(decoded, equalTo(index.size))
+            time
+        }.min()!!
+
+        val frozenTime = time { buckets.keys.sumBy { index.get(it).count() } }
+        val gzipTime = time { gzipBuckets.values.sumBy { gunzip(it).count() } }
+        assert.that(frozenTime, lessThan(gzipTime))
+
+        val output = listOf(
+                "words: ${index.size}, buckets: ${buckets.size}",
+                "frozen: ${frozenBytes.size} bytes, ${frozenTime / 1000} us per full decoding",
+                "gzip: $gzipBytes bytes, ${gzipTime / 1000} us per full decoding"
+        )
+        val resultsDir = File(File(TestData.dir, "testResults"), DLSearcher.VERSION.toString())
+        val results = File(resultsDir, "frozen.txt")
+        if (!results.exists()) {
+            resultsDir.mkdirs()
+            results.writeText(output.joinToString("\n", postfix = "\n"))
+        }
+    }
+
+    private fun gzip(words: Set<String>): Pair<Int, ByteArray> {
+        val outputBytes = ByteArrayOutputStream()
+        ObjectOutputStream(GZIPOutputStream(outputBytes)).use { outputStream -> words.forEach { outputStream.writeObject(it) } }
+        return words.size to outputBytes.toByteArray()
+    }
+
+    private fun gunzip(bucket: Pair<Int, ByteArray>): Sequence<String> {
+        val inputStream = ObjectInputStream(GZIPInputStream(ByteArrayInputStream(bucket.second)))
+        return generateSequence { inputStream.readObject() as String }.take(bucket.first)
+    }
+}
@@ -0,0 +1,66 @@
+package ru.jetbrains.yaveyn.fuzzysearch.test.search
+
+import com.intellij.openapi.project.DumbService
+import com.intellij.testFramework.fixtures.LightPlatformCodeInsightFixtureTestCase
+import com.jetbrains.typofixer.search.index.CombinedIndex
+import com.jetbrains.typofixer.searcher
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicBoolean
+import kotlin.concurrent.thread
+
+/**
+ * @author bronti.
+ */
+
+class GlobalIndexConcurrencyTest : LightPlatformCodeInsightFixtureTestCase() {
+
+    private val readersCount = 8
+    private val refreshingsCount = 10
+
+    private val words = listOf(
+            "String" to CombinedIndex.IndexType.CLASSNAME,
+            "println" to CombinedIndex.IndexType.NOT_CLASSNAME,
+            "lang" to CombinedIndex.IndexType.NOT_CLASSNAME
+    )
+
+    private lateinit var index: CombinedIndex
+
+    override fun setUp() {
+        super.setUp()
+        DumbService.getInstance(project).waitForSmartMode()
+        project.searcher.forceGlobalIndexRefreshing()
+        index = project.searcher.getIndex()
+    }
+
+    fun testReadersDuringRefreshing() {
+        words.forEach { (word, type) -> assertTrue(index.getAll(type, index.signature.get(word)).contains(word)) }
+
+        val refreshingIsOver = AtomicBoolean(false)
+        val errors = ConcurrentLinkedQueue<Throwable>()
+
+        val readers = (1..readersCount).map {
+            thread {
+                try {
+                    while (!refreshingIsOver.get()) {
+                        words.forEach { (word, type) ->
+                            val signature = index.signature.get(word)
+                            assertTrue("$word is not found", index.getAll(type, signature).contains(word))
+                            assertTrue(index.getBucketSize(type, signature) > 0)
+                        }
+                        assertTrue(index.getGlobalSize() > 0)
+                    }
+                } catch (e: Throwable) {
+                    errors.add(e)
+                }
+            }
+        }
+
+        try {
+            repeat(refreshingsCount) { project.searcher.forceGlobalIndexRefreshing() }
+        } finally {
+            refreshingIsOver.set(true)
+            readers.forEach(Thread::join)
+        }
+        assertEmpty(errors)
+    }
+}
@@ -0,0 +1,79 @@
+package ru.jetbrains.yaveyn.fuzzysearch.test.search
+
+import com.intellij.openapi.project.DumbService
+import com.intellij.testFramework.fixtures.LightPlatformCodeInsightFixtureTestCase
+import com.jetbrains.typofixer.search.index.BucketsBuilder
+import com.jetbrains.typofixer.search.index.CombinedIndex
+import com.jetbrains.typofixer.search.index.GlobalIndexRefreshingTaskBase
+import com.jetbrains.typofixer.search.index.GlobalInnerIndex
+import com.jetbrains.typofixer.search.index.IndexPart
+import com.jetbrains.typofixer.search.index.LibraryShardsCache
+import com.jetbrains.typofixer.search.index.ProjectNamesTracker
+import com.jetbrains.typofixer.search.signature.ComplexSignature
+
+/**
+ * @author bronti.
+ */
+
+class GlobalIndexReadinessTest : LightPlatformCodeInsightFixtureTestCase() {
+
+    private val maxWaitingMillis = 10000L
+
+    private lateinit var index: GlobalInnerIndex
+
+    private var readyTypesWhileCollecting = emptyList<CombinedIndex.IndexType>()
+    private var isClassFoundWhileCollecting = false
+
+    // class names are collected at once, the rest of names are collected after class names are ready
+    private inner class SlowMethodsCollector(targetIndex: GlobalInnerIndex) : GlobalIndexRefreshingTaskBase(targetIndex) {
+        override fun createJobs() = listOf(
+                Job("classes", listOf(CombinedIndex.IndexType.CLASSNAME)) { _ ->
+                    JobResult.Collected(IndexPart(namesOf(CombinedIndex.IndexType.CLASSNAME, "UniqueClass")))
+                },
+                Job("methods", listOf(CombinedIndex.IndexType.NOT_CLASSNAME, CombinedIndex.IndexType.KOTLIN_SPECIFIC_FIELD)) { _ ->
+                    val startTime = System.currentTimeMillis()
+                    while (!index.isReady(CombinedIndex.IndexType.CLASSNAME) && System.currentTimeMillis() < startTime + maxWaitingMillis) {
+                        Thread.sleep(10)
+                    }
+                    readyTypesWhileCollecting = index.getReadyTypes()
+                    isClassFoundWhileCollecting = isFound("UniqueClass", CombinedIndex.IndexType.CLASSNAME)
+                    JobResult.Collected(IndexPart(namesOf(CombinedIndex.IndexType.NOT_CLASSNAME, "uniqueMethod")))
+                }
+        )
+
+        private fun namesOf(type: CombinedIndex.IndexType, vararg names: String): BucketsBuilder {
+            val builder = BucketsBuilder(signature)
+            names.forEach { builder.add(type, it) }
+            return builder
+        }
+    }
+
+    override fun setUp() {
+        super.setUp()
+        DumbService.getInstance(project).waitForSmartMode()
+        index = GlobalInnerIndex(project, ComplexSignature(), null, LibraryShardsCache(isStoredOnDisk = false), ProjectNamesTracker(project)) {
+            SlowMethodsCollector(it)
+        }
+    }
+
+    override fun tearDown() {
+        try {
+            index.dispose()
+        } finally {
+            super.tearDown()
+        }
+    }
+
+    fun testTypesBecomeReadyOneByOne() {
+        index.waitForRefreshing()
+
+        assertEquals(listOf(CombinedIndex.IndexType.CLASSNAME), readyTypesWhileCollecting)
+        assertTrue(isClassFoundWhileCollecting)
+        assertEquals(CombinedIndex.IndexType.globalValues(), index.getReadyTypes())
+        assertTrue(isFound("UniqueClass", CombinedIndex.IndexType.CLASSNAME))
+        assertTrue(isFound("uniqueMethod", CombinedIndex.IndexType.NOT_CLASSNAME))
+    }
+
+    private fun isFound(word: String, type: CombinedIndex.IndexType) =
+            index.getAll(index.signature.get(word), listOf(type)).any { it.first == word }
+}
@@ -0,0 +1,84 @@
+package ru.jetbrains.yaveyn.fuzzysearch.test.search
+
+import com.intellij.openapi.command.WriteCommandAction
+import com.intellij.openapi.project.DumbService
+import com.intellij.psi.PsiDocumentManager
+import com.intellij.testFramework.fixtures.LightPlatformCodeInsightFixtureTestCase
+import com.jetbrains.typofixer.search.index.CombinedIndex
+import com.jetbrains.typofixer.searcher
+
+/**
+ * @author bronti.
+ */
+
+class GlobalIndexUpdatingTest : LightPlatformCodeInsightFixtureTestCase() {
+
+    private lateinit var index: CombinedIndex
+
+    override fun setUp() {
+        super.setUp()
+        myFixture.configureByText("Foo.java", "class UniqueClassBefore { void uniqueMethodBefore() {} int getUniqueFieldBefore() { return 0; } }")
+        DumbService.getInstance(project).waitForSmartMode()
+        project.searcher.forceGlobalIndexRefreshing()
+        index = project.searcher.getIndex()
+    }
+
+    fun testRenamedNamesAreUpdated() {
+        assertDeclared(true, "UniqueClassBefore", CombinedIndex.IndexType.CLASSNAME)
+        assertDeclared(true, "uniqueMethodBefore", CombinedIndex.IndexType.NOT_CLASSNAME)
+        assertDeclared(true, "uniqueFieldBefore", CombinedIndex.IndexType.KOTLIN_SPECIFIC_FIELD)
+        val timesRefreshed = index.timesGlobalRefreshRequested
+
+        replaceText("Before", "After")
+        index.waitForGlobalUpdating()
+
+        assertDeclared(false, "UniqueClassBefore", CombinedIndex.IndexType.CLASSNAME)
+        assertDeclared(false, "uniqueMethodBefore", CombinedIndex.IndexType.NOT_CLASSNAME)
+        assertDeclared(false, "uniqueFieldBefore", CombinedIndex.IndexType.KOTLIN_SPECIFIC_FIELD)
+        assertDeclared(true, "UniqueClassAfter", CombinedIndex.IndexType.CLASSNAME)
+        assertDeclared(true, "uniqueMethodAfter", CombinedIndex.IndexType.NOT_CLASSNAME)
+        assertDeclared(true, "uniqueFieldAfter", CombinedIndex.IndexType.KOTLIN_SPECIFIC_FIELD)
+        assertEquals(timesRefreshed, index.timesGlobalRefreshRequested)
+    }
+
+    fun testNameDeclaredElsewhereIsKept() {
+        myFixture.addFileToProject("Bar.java", "class Bar { void uniqueMethodBefore() {} }")
+        PsiDocumentManager.getInstance(project).commitAllDocuments()
+        index.waitForGlobalUpdating()
+
+        replaceText("uniqueMethodBefore", "uniqueMethodAfter")
+        index.waitForGlobalUpdating()
+
+        assertDeclared(true, "uniqueMethodBefore", CombinedIndex.IndexType.NOT_CLASSNAME)
+        assertDeclared(true, "uniqueMethodAfter", CombinedIndex.IndexType.NOT_CLASSNAME)
+    }
+
+    fun testRefreshingKeepsChanges() {
+        replaceText("Before", "After")
+        project.searcher.forceGlobalIndexRefreshing()
+        index.waitForGlobalUpdating()
+
+        assertDeclared(false, "uniqueMethodBefore", CombinedIndex.IndexType.NOT_CLASSNAME)
+        assertDeclared(true, "uniqueMethodAfter", CombinedIndex.IndexType.NOT_CLASSNAME)
+    }
+
+    fun testNamesOfDeletedFileAreRemoved() {
+        WriteCommandAction.runWriteCommandAction(project) { myFixture.file.delete() }
+        index.waitForGlobalUpdating()
+
+        assertDeclared(false, "UniqueClassBefore", CombinedIndex.IndexType.CLASSNAME)
+        assertDeclared(false, "uniqueMethodBefore", CombinedIndex.IndexType.NOT_CLASSNAME)
+    }
+
+    private fun replaceText(oldValue: String, newValue: String) {
+        val document = myFixture.editor.document
+        WriteCommandAction.runWriteCommandAction(project) {
+            document.setText(document.text.replace(oldValue, newValue))
+        }
+        PsiDocumentManager.getInstance(project).commitAllDocuments()
+    }
+
+    private fun assertDeclared(isDeclared: Boolean, word: String, type: CombinedIndex.IndexType) {
+        assertEquals(word, isDeclared, index.getAll(type, index.signature.get(word)).contains(word))
+    }
+}
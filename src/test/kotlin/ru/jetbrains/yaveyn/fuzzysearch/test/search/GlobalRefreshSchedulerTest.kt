@@ -0,0 +1,54 @@
+package ru.jetbrains.yaveyn.fuzzysearch.test.search
+
+import com.intellij.testFramework.fixtures.LightPlatformCodeInsightFixtureTestCase
+import com.intellij.util.ui.UIUtil
+import com.jetbrains.typofixer.search.index.GlobalRefreshScheduler
+
+/**
+ * @author bronti.
+ */
+
+class GlobalRefreshSchedulerTest : LightPlatformCodeInsightFixtureTestCase() {
+
+    private var refreshesCount = 0
+    private var updatesCount = 0
+
+    private lateinit var scheduler: GlobalRefreshScheduler
+
+    override fun setUp() {
+        super.setUp()
+        refreshesCount = 0
+        updatesCount = 0
+        scheduler = GlobalRefreshScheduler({ ++refreshesCount }, { ++updatesCount }, testRootDisposable)
+    }
+
+    fun testBurstOfUpdatesIsCoalesced() {
+        repeat(10) { scheduler.requestUpdate() }
+        waitForExecution(1)
+
+        assertEquals(0, refreshesCount)
+        assertEquals(1, updatesCount)
+        assertEquals(10, scheduler.timesRequested)
+        assertEquals(9, scheduler.timesCoalesced)
+    }
+
+    fun testRefreshCoversUpdates() {
+        scheduler.requestUpdate()
+        scheduler.requestRefresh()
+        scheduler.requestUpdate()
+        waitForExecution(1)
+
+        assertEquals(1, refreshesCount)
+        assertEquals(0, updatesCount)
+        assertEquals(2, scheduler.timesCoalesced)
+    }
+
+    private fun waitForExecution(timesExecuted: Int) {
+        val deadline = System.currentTimeMillis() + 10000
+        while (scheduler.timesExecuted < timesExecuted && System.currentTimeMillis() < deadline) {
+            UIUtil.dispatchAllInvocationEvents()
+            Thread.sleep(10)
+        }
+        assertEquals(timesExecuted, scheduler.timesExecuted)
+    }
+}
@@ -0,0 +1,71 @@
+package ru.jetbrains.yaveyn.fuzzysearch.test.search
+
+import com.jetbrains.typofixer.search.index.FrozenIndex
+import com.jetbrains.typofixer.search.index.LibraryShard
+import com.jetbrains.typofixer.search.index.LibraryShardsCache
+import com.jetbrains.typofixer.search.index.WordPool
+import com.jetbrains.typofixer.search.signature.ComplexSignature
+import com.natpryce.hamkrest.assertion.assert
+import com.natpryce.hamkrest.equalTo
+import org.junit.Test
+
+/**
+ * @author bronti.
+ */
+class LibraryShardsCacheTest {
+
+    private val projectsCount = 5
+
+    private val signature = ComplexSignature()
+
+    private val buckets = TestData.bigFileBuckets(signature).mapValues { it.value.associate { it to 1 } }
+
+    // every project collects its own copy of the same library
+    private fun collectShard(key: String) = LibraryShard(key, FrozenIndex.freeze(buckets, WordPool()))
+
+    @Test
+    fun testShardsAreShared() {
+        val cache = LibraryShardsCache(isStoredOnDisk = false)
+        val shardsByProjects = (1..projectsCount).map { cache.acquire(listOf(collectShard("jdk"), collectShard("lib"))) }
+
+        shardsByProjects.forEach { shards ->
+            assert.that(shards.map { it.key }, equalTo(listOf<String?>("jdk", "lib")))
+            assert.that(shards.zip(shardsByProjects.first()).all { it.first.index === it.second.index }, equalTo(true))
+        }
+
+        val shardBytes = shardsByProjects.first().first().index.bytesCount
+        val statistics = cache.getStatistics()
+        assert.that(statistics.shardsCount, equalTo(2))
+        assert.that(statistics.references, equalTo(2 * projectsCount))
+        assert.that(statistics.retainedBytes, equalTo(2 * shardBytes))
+        assert.that(statistics.bytesWithoutSharing, equalTo(2 * projectsCount * shardBytes))
+    }
+
+    @Test
+    fun testShardsAreReleased() {
+        val cache = LibraryShardsCache(isStoredOnDisk = false, gracePeriodMillis = 0)
+        val shardsByProjects = (1..projectsCount).map { cache.acquire(listOf(collectShard("jdk"))) }
+        val shardWithoutKey = LibraryShard(null, FrozenIndex.freeze(buckets, WordPool()))
+        assert.that(cache.acquire(listOf(shardWithoutKey)).single() === shardWithoutKey, equalTo(true))
+
+        shardsByProjects.drop(1).forEach { cache.release(it) }
+        assert.that(cache.getStatistics().references, equalTo(1))
+        assert.that(cache.get("jdk") === shardsByProjects.first().single().index, equalTo(true))
+
+        cache.release(shardsByProjects.first())
+        assert.that(cache.getStatistics().shardsCount, equalTo(0))
+        assert.that(cache.get("jdk"), equalTo<FrozenIndex?>(null))
+    }
+
+    @Test
+    fun testReleasedShardsAreKeptForGracePeriod() {
+        val cache = LibraryShardsCache(isStoredOnDisk = false, gracePeriodMillis = 60 * 60 * 1000L)
+        val released = cache.acquire(listOf(collectShard("jdk")))
+        cache.release(released)
+        assert.that(cache.getStatistics().shardsCount, equalTo(0))
+        assert.that(cache.get("jdk") === released.single().index, equalTo(true))
+
+        val reacquired = cache.acquire(listOf(collectShard("jdk")))
+        assert.that(reacquired.single().index === released.single().index, equalTo(true))
+    }
+}
@@ -0,0 +1,26 @@
+package ru.jetbrains.yaveyn.fuzzysearch.test.search
+
+import com.jetbrains.typofixer.search.signature.Signature
+import java.io.File
+
+/**
+ * @author bronti.
+ */
+object TestData {
+    val dir = File("testData")
+    val bigFile = File(dir, "BigTestFile.java")
+
+    private val splitBy = Regex("[^a-zA-Z0-9_]+")
+    private val word = Regex("^[a-zA-Z_][a-zA-Z0-9_]*$")
+
+    // distinct identifiers of the big file in order of their first occurrence
+    val bigFileWords: List<String> by lazy {
+        bigFile.readLines()
+                .flatMap { splitBy.split(it).filter { word.matches(it) } }
+                .toSet()
+                .toList()
+    }
+
+    fun bigFileBuckets(signature: Signature): Map<Int, Set<String>> =
+            bigFileWords.groupBy { signature.get(it) }.mapValues { it.value.toSet() }
+}
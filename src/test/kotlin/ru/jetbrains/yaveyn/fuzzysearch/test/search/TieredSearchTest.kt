@@ -0,0 +1,76 @@
+package ru.jetbrains.yaveyn.fuzzysearch.test.search
+
+import com.intellij.openapi.project.DumbService
+import com.intellij.testFramework.fixtures.LightPlatformCodeInsightFixtureTestCase
+import com.jetbrains.typofixer.ResolveCancelledException
+import com.jetbrains.typofixer.search.DLSearcher
+import com.jetbrains.typofixer.search.index.CombinedIndex
+import com.jetbrains.typofixer.searcher
+import com.jetbrains.typofixer.settings.TypoFixerSettings
+
+/**
+ * @author bronti.
+ */
+
+class TieredSearchTest : LightPlatformCodeInsightFixtureTestCase() {
+
+    // the first one is one mistake away from the searched word, the second one is three mistakes away
+    private val text = "class Some { void somePrettyLongMethodName() { int somPrettyLongMetodName; } }"
+    private val searched = "somPretyLongMetodName"
+
+    private val settings get() = TypoFixerSettings.getInstance()
+    private var maxMillisForEscalation = 0L
+
+    override fun setUp() {
+        super.setUp()
+        maxMillisForEscalation = settings.maxMillisForEscalation
+        settings.maxMillisForEscalation = 60000L
+        myFixture.configureByText("Foo.java", text)
+        DumbService.getInstance(project).waitForSmartMode()
+    }
+
+    override fun tearDown() {
+        try {
+            settings.maxMillisForEscalation = maxMillisForEscalation
+        } finally {
+            super.tearDown()
+        }
+    }
+
+    fun testErrorTiers() {
+        assertEquals(listOf(2), DLSearcher.getErrorTiers(2))
+        assertEquals(listOf(2), DLSearcher.getErrorTiers(8))
+        assertEquals(listOf(2, 3), DLSearcher.getErrorTiers(searched.length))
+    }
+
+    fun testEscalatedWhenCheapTierIsRead() {
+        val words = find()
+        assertTrue(words.contains("somPrettyLongMetodName"))
+        assertTrue(words.contains("somePrettyLongMethodName"))
+        assertTrue(words.indexOf("somPrettyLongMetodName") < words.indexOf("somePrettyLongMethodName"))
+        assertEquals(words.distinct(), words)
+    }
+
+    // find time checker isn't used by escalation, as find time is usually over before the results are read
+    fun testEscalatedWhenFindTimeIsOver() {
+        var isFindTimeOver = false
+        val results = project.searcher.find(myFixture.file, searched, listOf(CombinedIndex.IndexType.LOCAL_IDENTIFIER)) {
+            if (isFindTimeOver) throw ResolveCancelledException()
+        }
+        isFindTimeOver = true
+        val words = results.asSequence().map { it.word }.toList()
+        assertTrue(words.contains("somePrettyLongMethodName"))
+    }
+
+    fun testNotEscalatedWhenEscalationTimeIsOver() {
+        settings.maxMillisForEscalation = 0L
+        val words = find()
+        assertTrue(words.contains("somPrettyLongMetodName"))
+        assertFalse(words.contains("somePrettyLongMethodName"))
+    }
+
+    private fun find() = project.searcher.find(myFixture.file, searched, listOf(CombinedIndex.IndexType.LOCAL_IDENTIFIER)) {}
+            .asSequence()
+            .map { it.word }
+            .toList()
+}
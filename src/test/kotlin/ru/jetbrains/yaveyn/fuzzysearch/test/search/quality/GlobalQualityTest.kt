@@ -7,9 +7,11 @@ import com.intellij.testFramework.fixtures.LightPlatformCodeInsightFixtureTestCa
 import com.jetbrains.typofixer.search.DLSearcher
 import com.jetbrains.typofixer.search.Searcher
 import com.jetbrains.typofixer.search.index.CombinedIndex
+import com.jetbrains.typofixer.search.index.LibraryShardsCache
 import com.jetbrains.typofixer.searcher
 import org.junit.Ignore
 import org.junit.Test
+import ru.jetbrains.yaveyn.fuzzysearch.test.search.TestData
 import java.io.File
 import kotlin.system.measureTimeMillis
 
@@ -20,7 +22,7 @@ import kotlin.system.measureTimeMillis
 @Ignore
 class GlobalQualityTest : LightPlatformCodeInsightFixtureTestCase() {
 
-    private val testDataDir = File("testData")
+    private val testDataDir = TestData.dir
     private val currentTestResultsDir = File(File(testDataDir, "testResults"), DLSearcher.VERSION.toString())
 
     private val precisionResults = File(currentTestResultsDir, "precision.txt")
@@ -76,21 +78,44 @@ class GlobalQualityTest : LightPlatformCodeInsightFixtureTestCase() {
         if (resultLoggingNeeded) {
             refreshingResults.createNewFile()
             refreshingResults.appendText("$result\n")
-            refreshingResults.appendText("index size: ${searcher.getStatistics().first}")
+            refreshingResults.appendText("index size: ${searcher.getStatistics().indexSize}")
         }
-        println("index size: ${searcher.getStatistics().first}")
+        val statistics = searcher.getStatistics()
+        println("index size: ${statistics.indexSize}")
+        println("global refreshing: ${statistics.timesGlobalRefreshRequested} requested, " +
+                "${statistics.timesGlobalRefreshExecuted} executed, ${statistics.timesGlobalRefreshCoalesced} coalesced")
         println(result)
     }
 
+    @Test
+            //    @Ignore
+    fun testMemory() {
+        val index = searcher.getIndex()
+        val wordPool = index.getWordPool()
+        // java.lang.String with char[] on 64-bit jvm with compressed oops
+        fun stringBytes(length: Int) = 24 + 16 + (2 * length + 7) / 8 * 8
+        val stringsBytes = (0 until wordPool.size).sumBy { stringBytes(wordPool.get(it).length) }
+        println("words in global index: ${index.getGlobalSize()}")
+        println("distinct words in project shard: ${wordPool.size}")
+        // word bytes and starts of words
+        val poolBytes = wordPool.bytesCount + 4L * wordPool.size
+        println("word pool: $poolBytes bytes (as strings: $stringsBytes bytes)")
+        assertTrue(wordPool.size > 0)
+        assertTrue(poolBytes < stringsBytes / 2)
+        val shared = LibraryShardsCache.getInstance().getStatistics()
+        println("library shards: ${shared.shardsCount} (${shared.references} references), " +
+                "${shared.retainedBytes} bytes (without sharing: ${shared.bytesWithoutSharing} bytes)")
+    }
+
     @Test
             //    @Ignore
     fun testPrecision() {
         val resultLoggingNeeded = !precisionResults.exists()
         if (resultLoggingNeeded) {
             precisionResults.createNewFile()
-            precisionResults.appendText("index size: ${searcher.getStatistics().first}\n")
+            precisionResults.appendText("index size: ${searcher.getStatistics().indexSize}\n")
         }
-        println("index size: ${searcher.getStatistics().first}")
+        println("index size: ${searcher.getStatistics().indexSize}")
         // todo: clear index (??)
         // todo: generate words
         // todo: different lengths
@@ -105,9 +130,9 @@ class GlobalQualityTest : LightPlatformCodeInsightFixtureTestCase() {
         val resultLoggingNeeded = !timeResults.exists()
         if (resultLoggingNeeded) {
             timeResults.createNewFile()
-            timeResults.appendText("index size: ${searcher.getStatistics().first}\n")
+            timeResults.appendText("index size: ${searcher.getStatistics().indexSize}\n")
         }
-        println("index size: ${searcher.getStatistics().first}")
+        println("index size: ${searcher.getStatistics().indexSize}")
         val chars = ('a'..'z').map { it.toString() }
         val chars2 = chars.flatMap { c1 -> ('a'..'z').map { c2 -> "$c1$c2" } }
         val chars3 = chars2.flatMap { c1 -> ('a'..'z').map { c2 -> "$c1$c2" } }
@@ -6,6 +6,7 @@ import com.intellij.testFramework.fixtures.LightPlatformCodeInsightFixtureTestCa
 import com.jetbrains.typofixer.search.DLSearcher
 import com.jetbrains.typofixer.searcher
 import org.junit.Test
+import ru.jetbrains.yaveyn.fuzzysearch.test.search.TestData
 import java.io.File
 import kotlin.system.measureTimeMillis
 
@@ -14,10 +15,9 @@ import kotlin.system.measureTimeMillis
  */
 class LocalQualityTest : LightPlatformCodeInsightFixtureTestCase() {
 
-    private val testDataDir = File("testData")
-    private val bigFile = File(testDataDir, "BigTestFile.java")
+    private val bigFile = TestData.bigFile
 
-    private val currentTestResultsDir = File(File(testDataDir, "testResults"), DLSearcher.VERSION.toString())
+    private val currentTestResultsDir = File(File(TestData.dir, "testResults"), DLSearcher.VERSION.toString())
     private val localTimeResults = File(currentTestResultsDir, "local_index_refreshing.txt")
 
     init {
@@ -110,6 +110,18 @@ class AdvancedReplacementTest : BaseReplacementTest() {
             "fun packageeee(): Boolean = packageeee(<caret>)",
             true)
 
+    fun testJavaThreeMistakesInLongIdentifier() = doTest(
+            "class Some { void somePrettyLongMethodName() { somPretyLongMetodName<caret>",
+            ' ',
+            "class Some { void somePrettyLongMethodName() { somePrettyLongMethodName <caret>",
+            false)
+
+    fun testJavaNoThreeMistakesInShortIdentifier() = doTest(
+            "class Some { void methodName() { mthdNme<caret>",
+            ' ',
+            "class Some { void methodName() { mthdNme <caret>",
+            false)
+
     fun testParamInLambda() = doTest(
             "val k = { id<caret>}",
             ' ',
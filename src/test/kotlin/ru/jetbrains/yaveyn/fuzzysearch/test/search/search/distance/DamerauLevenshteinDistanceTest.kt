@@ -99,6 +99,9 @@ class DamerauLevenshteinDistanceTest {
 
         assert.that(distance.measure(word1, word2), isWithin(expectedResult - 0.001..expectedResult + 0.001))
         assert.that(distance.measure(word2, word1), isWithin(expectedResultOtherOrder - 0.001..expectedResultOtherOrder + 0.001))
+
+        assert.that(distance.compile(word1).measure(word2), isWithin(expectedResult - 0.001..expectedResult + 0.001))
+        assert.that(distance.compile(word2).measure(word1), isWithin(expectedResultOtherOrder - 0.001..expectedResultOtherOrder + 0.001))
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,75 @@
+package ru.jetbrains.yaveyn.fuzzysearch.test.search.search.distance
+
+import com.jetbrains.typofixer.search.distance.CompiledUnitDistance
+import com.jetbrains.typofixer.search.distance.DamerauLevenshteinDistance
+import com.natpryce.hamkrest.assertion.assert
+import com.natpryce.hamkrest.equalTo
+import org.junit.Test
+
+class UnitDistanceTest {
+
+    @Test
+    fun equalsTest() {
+        doTest("theWord", "theWord", 0)
+    }
+
+    @Test
+    fun emptyWordTest() {
+        doTest("ord", "", 3)
+        doTest("", "ord", 3)
+    }
+
+    @Test
+    fun replaceTest() {
+        doTest("ord", "oRd", 1)
+        doTest("ord", "omd", 1)
+    }
+
+    @Test
+    fun addRemoveTest() {
+        doTest("od", "ord", 1)
+        doTest("ord", "od", 1)
+    }
+
+    @Test
+    fun swapTest() {
+        doTest("lordoVldemorto", "lordVoldemorto", 1)
+        doTest("ca", "abc", 3)
+    }
+
+    @Test
+    fun longWordTest() {
+        val base = "a".repeat(CompiledUnitDistance.MAX_BASE_LENGTH)
+        doTest(base, base.substring(1) + "b", 1)
+    }
+
+    @Test
+    fun bigDistanceTest() {
+        assert.that(CompiledUnitDistance("ord").measure("lordVoldemort", 2) > 2, equalTo(true))
+        assert.that(CompiledUnitDistance("retrun").measure("Stirng", 3) > 3, equalTo(true))
+    }
+
+    @Test
+    fun prefilterDoesNotRejectCloseWordsTest() {
+        val words = listOf("return", "retrun", "Return", "RETURN", "ertunr", "String", "Stirng", "sTRING", "strin", "Strinng")
+        for (maxError in 0..4) {
+            val distance = DamerauLevenshteinDistance(maxError)
+            for (base in words) {
+                val compiled = distance.compile(base)
+                for (replacement in words) {
+                    if (compiled.roundedMeasure(replacement) <= maxError) {
+                        assert.that(compiled.isSurelyTooFar(replacement), equalTo(false))
+                    }
+                }
+            }
+        }
+    }
+
+    private fun doTest(base: String, replacement: String, expectedDistance: Int) {
+        assert.that(CompiledUnitDistance(base).measure(replacement, expectedDistance), equalTo(expectedDistance))
+        assert.that(CompiledUnitDistance(base).measure(replacement, expectedDistance + 5), equalTo(expectedDistance))
+        if (expectedDistance > 0) {
+            assert.that(CompiledUnitDistance(base).measure(replacement, expectedDistance - 1) > expectedDistance - 1, equalTo(true))
+        }
+    }
+}
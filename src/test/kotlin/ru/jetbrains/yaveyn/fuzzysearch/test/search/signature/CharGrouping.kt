@@ -0,0 +1,80 @@
+package ru.jetbrains.yaveyn.fuzzysearch.test.search.signature
+
+/**
+ * Bits of [WideSignature] chars mask derived from char statistics of a corpus of words (chars are lower cased).
+ *
+ * Every char gets its own bit while there are enough of them, otherwise chars are grouped so that words containing
+ * chars of every group are equally frequent (the most frequent chars are assigned first, each one to the least loaded group).
+ * Bits left after that are given to groups as second bits, which are set when a word has at least two chars of the group.
+ * Groups whose repeated chars split words most evenly get them first.
+ * Adding a char to a word sets at most one bit, so ranges are built the same way as for
+ * [com.jetbrains.typofixer.search.signature.ComplexSignature].
+ * Chars missing in the corpus are all put into the least loaded group.
+ */
+class CharGrouping private constructor(
+        // groups of ascii chars
+        private val asciiGroups: IntArray,
+        val groupsCount: Int,
+        // bits of groups which are set for two or more chars of the group, -1 if there is no such bit
+        private val repeatBits: IntArray,
+        private val missingCharsGroup: Int
+) {
+    val bitsCount = groupsCount + repeatBits.count { it >= 0 }
+
+    fun maskOf(str: String): Long {
+        var mask = 0L
+        for (c in str) {
+            val group = groupOf(c.toLowerCase())
+            val bit = 1L shl group
+            if (mask and bit == 0L) {
+                mask = mask or bit
+            } else if (repeatBits[group] >= 0) {
+                mask = mask or (1L shl repeatBits[group])
+            }
+        }
+        return mask
+    }
+
+    private fun groupOf(c: Char) = if (c.toInt() < ASCII_SIZE && asciiGroups[c.toInt()] >= 0) asciiGroups[c.toInt()] else missingCharsGroup
+
+    companion object {
+        private val ASCII_SIZE = 128
+
+        fun fromCorpus(words: Collection<String>, maxBitsCount: Int): CharGrouping {
+            // counts of words with at least one and at least two of each char
+            val wordsWithChar = IntArray(ASCII_SIZE)
+            val wordsWithRepeatedChar = IntArray(ASCII_SIZE)
+            val charCounts = IntArray(ASCII_SIZE)
+            words.forEach { word ->
+                charCounts.fill(0)
+                word.forEach { val c = it.toLowerCase().toInt(); if (c < ASCII_SIZE) ++charCounts[c] }
+                charCounts.forEachIndexed { c, count ->
+                    if (count >= 1) ++wordsWithChar[c]
+                    if (count >= 2) ++wordsWithRepeatedChar[c]
+                }
+            }
+
+            val chars = (0 until ASCII_SIZE).filter { wordsWithChar[it] > 0 }.sortedByDescending { wordsWithChar[it] }
+            val groupsCount = Math.max(1, Math.min(chars.size, maxBitsCount))
+            val asciiGroups = IntArray(ASCII_SIZE) { -1 }
+            val groupLoads = LongArray(groupsCount)
+            val groupRepeats = LongArray(groupsCount)
+            chars.forEach { c ->
+                val group = groupLoads.indices.minBy { groupLoads[it] }!!
+                asciiGroups[c] = group
+                groupLoads[group] += wordsWithChar[c].toLong()
+                groupRepeats[group] += wordsWithRepeatedChar[c].toLong()
+            }
+
+            // the more even the split of words containing the group, the more the second bit is worth
+            val repeatBits = IntArray(groupsCount) { -1 }
+            (0 until groupsCount)
+                    .filter { groupRepeats[it] > 0 }
+                    .sortedByDescending { Math.min(groupRepeats[it], groupLoads[it] - groupRepeats[it]) }
+                    .take(maxBitsCount - groupsCount)
+                    .forEachIndexed { index, group -> repeatBits[group] = groupsCount + index }
+
+            return CharGrouping(asciiGroups, groupsCount, repeatBits, groupLoads.indices.minBy { groupLoads[it] }!!)
+        }
+    }
+}
@@ -1,9 +1,17 @@
 package ru.jetbrains.yaveyn.fuzzysearch.test.search.signature
 
+import com.jetbrains.typofixer.search.DLSearcher
+import com.jetbrains.typofixer.search.index.OccupancyBitmap
 import com.jetbrains.typofixer.search.signature.ComplexSignature
+import com.jetbrains.typofixer.search.signature.SignatureRange
 import com.natpryce.hamkrest.*
 import com.natpryce.hamkrest.assertion.assert
+import org.junit.Ignore
 import org.junit.Test
+import ru.jetbrains.yaveyn.fuzzysearch.test.search.TestData
+import java.io.File
+import java.util.*
+import kotlin.system.measureNanoTime
 
 
 fun bitCount(diff: Int) = (0..31).map { 1 shl it }.map { diff and it }.filter { it > 0 }.count()
@@ -118,5 +126,107 @@ class RangeTest {
         check(3077, 44)
     }
 
-    // todo: test big length
+    @Test
+    fun testSameAsSetBasedRange() {
+        val signature = ComplexSignature()
+        val random = Random(42)
+        val bases = listOf(0, 1, 167, 3076, (1 shl 25) - 1) + (1..20).map { random.nextInt(1 shl 25) }
+        val lengths = listOf(0, 1, 2, 3, 12, 126, 127)
+        for (maxRoundedError in 0..3) {
+            bases.forEach { base ->
+                lengths.forEach { length ->
+                    val expected = SetBasedSignature.getRawRange(base, length, maxRoundedError)
+                    assert.that(signature.getRawRange(base, length, maxRoundedError), equalTo(expected))
+                }
+            }
+        }
+    }
+
+    @Test
+    fun testBuffersAreReused() {
+        val signature = ComplexSignature()
+        val range = SignatureRange()
+        signature.getRange("aVeryLongIdentifier", 2, range)
+        signature.getRange("x", 1, range)
+        assert.that(range.toSets(), equalTo(signature.getRange("x", 1)))
+    }
+
+    @Test
+    fun testGroupsAreWrittenWhenRead() {
+        val signature = ComplexSignature()
+        val written = ArrayList<Int>()
+        val range = SignatureRange { written.add(it); true }
+        signature.getRange("identifier", 3, range)
+        assert.that(written.size, equalTo(0))
+
+        range.size(1)
+        val expected = signature.getRange("identifier", 3)
+        assert.that(written.toSet(), equalTo(expected[0] + expected[1]))
+
+        assert.that(range.toSets(), equalTo(expected))
+    }
+
+    @Test
+    fun testPrunedRange() {
+        val signature = ComplexSignature()
+        val kept = setOf(signature.get("identifier"), signature.get("identifie"), signature.get("idnetifeir"), signature.get("dentifier"))
+        val range = SignatureRange { it in kept }
+        for (maxRoundedError in 0..3) {
+            signature.getRange("identifier", maxRoundedError, range)
+            val expected = signature.getRange("identifier", maxRoundedError)
+            assert.that(range.toSets(), equalTo(expected.map { it.filterTo(HashSet()) { it in kept } }))
+            assert.that(range.prunedCount, equalTo(expected.sumBy { it.size } - range.size))
+        }
+    }
+
+    // sizes and times of ranges for words of a big file, pruned ones keep signatures of the words of the file only
+    @Test
+    fun testRangesByError() {
+        val signature = ComplexSignature()
+        val words = TestData.bigFileWords
+        val occupancy = OccupancyBitmap.of(words.map { signature.get(it) }.toSet())
+        val range = SignatureRange()
+        val prunedRange = SignatureRange { occupancy.mayContain(it) }
+        // the best of several runs, the first ones warm up
+        fun time(action: () -> Unit) = (1..5).map { measureNanoTime(action) }.min()!!
+
+        val output = (1..4).map { maxRoundedError ->
+            val fullTime = time { words.forEach { signature.getRange(it, maxRoundedError, range); range.size } }
+            val fullSize = words.sumBy { signature.getRange(it, maxRoundedError, range); range.size }
+            val prunedTime = time { words.forEach { signature.getRange(it, maxRoundedError, prunedRange); prunedRange.size } }
+            val prunedSize = words.sumBy { signature.getRange(it, maxRoundedError, prunedRange); prunedRange.size }
+            // every word keeps at least its own signature
+            assert.that(prunedSize, !lessThan(words.size) and lessThan(fullSize))
+            val firstGroupsTime = time { words.forEach { signature.getRange(it, maxRoundedError, prunedRange); prunedRange.size(1) } }
+            "max error $maxRoundedError, ${words.size} words: range ${fullSize / words.size} signatures, ${fullTime / words.size / 1000} us per word, " +
+                    "pruned ${prunedSize / words.size} signatures, ${prunedTime / words.size / 1000} us per word, " +
+                    "errors 0..1 only ${firstGroupsTime / words.size / 1000} us per word"
+        }
+        val resultsDir = File(File(TestData.dir, "testResults"), DLSearcher.VERSION.toString())
+        val results = File(resultsDir, "ranges.txt")
+        if (!results.exists()) {
+            resultsDir.mkdirs()
+            results.writeText(output.joinToString("\n", postfix = "\n"))
+        }
+    }
+
+    // compares with hash sets based range used before (time of ranges for words of a big file)
+    @Ignore
+    @Test
+    fun testCompareWithSetBasedRange() {
+        val signature = ComplexSignature()
+        val words = TestData.bigFileWords
+        val range = SignatureRange()
+        // the best of several runs, the first ones warm up
+        fun time(action: () -> Unit) = (1..3).map { measureNanoTime(action) }.min()!!
+        for (maxRoundedError in 1..3) {
+            val setBasedTime = time {
+                words.map { signature.get(it) }.forEach {
+                    SetBasedSignature.getRawRange(it and ((1 shl 25) - 1), it ushr 25, maxRoundedError)
+                }
+            }
+            val templateTime = time { words.forEach { signature.getRange(it, maxRoundedError, range) } }
+            assert.that(templateTime, lessThan(setBasedTime))
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,117 @@
+package ru.jetbrains.yaveyn.fuzzysearch.test.search.signature
+
+import com.jetbrains.typofixer.search.DLSearcher
+import com.jetbrains.typofixer.search.distance.CompiledUnitDistance
+import com.jetbrains.typofixer.search.signature.ComplexSignature
+import com.natpryce.hamkrest.assertion.assert
+import com.natpryce.hamkrest.equalTo
+import org.junit.Test
+import ru.jetbrains.yaveyn.fuzzysearch.test.search.TestData
+import java.io.File
+import java.util.*
+
+/**
+ * @author bronti.
+ */
+class SignatureComparisonTest {
+
+    private val currentTestResultsDir = File(File(TestData.dir, "testResults"), DLSearcher.VERSION.toString())
+    private val signaturesResults = File(currentTestResultsDir, "signatures.txt")
+
+    private val maxRoundedError = 2
+
+    private val words = TestData.bigFileWords
+
+    // recall is given separately for matches within one edit, which are always in range, and two edits, which may be not
+    private class Report(val name: String, buckets: Collection<Int>, val rangeSize: Double, val candidates: Double, val found: Double, val recall: List<Double>) {
+        val bucketsCount = buckets.size
+        val maxBucketSize = buckets.max() ?: 0
+        val averageBucketSize = buckets.average()
+
+        override fun toString() = "$name: buckets: $bucketsCount, max bucket: $maxBucketSize, average bucket: ${"%.2f".format(averageBucketSize)}, " +
+                "range: ${"%.1f".format(rangeSize)}, candidates: ${"%.1f".format(candidates)}, found: ${"%.2f".format(found)}, " +
+                "recall: ${recall.joinToString { "%.3f".format(it) }}"
+    }
+
+    // sampled words with one or two random edits
+    private fun queries(count: Int): List<String> {
+        val random = Random(42)
+        val chars = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789_"
+        return (1..count).map {
+            val query = StringBuilder(words[random.nextInt(words.size)])
+            repeat(1 + random.nextInt(2)) {
+                val index = random.nextInt(query.length + 1)
+                val c = chars[random.nextInt(chars.length)]
+                when (random.nextInt(4)) {
+                    0 -> if (index < query.length && query.length > 1) query.deleteCharAt(index)
+                    1 -> query.insert(index, c)
+                    2 -> if (index < query.length) query.setCharAt(index, c)
+                    else -> if (index + 1 < query.length) {
+                        val tmp = query[index]
+                        query.setCharAt(index, query[index + 1])
+                        query.setCharAt(index + 1, tmp)
+                    }
+                }
+            }
+            query.toString()
+        }.filter { it.length <= CompiledUnitDistance.MAX_BASE_LENGTH }
+    }
+
+    private fun <S> report(name: String, queries: List<String>, signatureOf: (String) -> S, rangeOf: (String) -> Collection<S>): Report {
+        val buckets = words.groupBy(signatureOf)
+        var rangeSize = 0L
+        var candidatesCount = 0L
+        val matchesCount = LongArray(maxRoundedError)
+        val foundCount = LongArray(maxRoundedError)
+        queries.forEach { query ->
+            val distance = CompiledUnitDistance(query)
+            val range = rangeOf(query)
+            val candidates = range.flatMap { buckets[it] ?: emptyList() }.toSet()
+            rangeSize += range.size
+            candidatesCount += candidates.size
+            words.forEach {
+                val error = distance.measure(it, maxRoundedError)
+                if (error <= maxRoundedError) {
+                    val group = Math.max(error, 1) - 1
+                    ++matchesCount[group]
+                    if (it in candidates) ++foundCount[group]
+                }
+            }
+        }
+        return Report(name, buckets.values.map { it.size }, rangeSize.toDouble() / queries.size, candidatesCount.toDouble() / queries.size,
+                foundCount.sum().toDouble() / queries.size, foundCount.indices.map { foundCount[it].toDouble() / matchesCount[it] })
+    }
+
+    @Test
+    fun testCandidatesToMatchesRatio() {
+        val queries = queries(500)
+        val matchesCount = queries.sumBy { query ->
+            val distance = CompiledUnitDistance(query)
+            words.count { distance.measure(it, maxRoundedError) <= maxRoundedError }
+        }
+
+        val complexSignature = ComplexSignature()
+        val complex = report("complex", queries, { complexSignature.get(it) }, { complexSignature.getRange(it, maxRoundedError).flatten() })
+
+        val grouping = CharGrouping.fromCorpus(words, WideSignature.MAX_CHAR_BITS_COUNT)
+        val wideSignature = WideSignature(grouping)
+        val wide = report("wide", queries, { wideSignature.get(it) }, { wideSignature.getRange(it, maxRoundedError).flatMap { it.toList() } })
+
+        assert.that(complex.recall[0], equalTo(1.0))
+        assert.that(wide.recall[0], equalTo(1.0))
+
+        val average = matchesCount.toDouble() / queries.size
+        val output = listOf(
+                "words: ${words.size}, queries: ${queries.size}, max error: $maxRoundedError, matches: ${"%.2f".format(average)}",
+                "wide signature bits: ${grouping.bitsCount} (groups: ${grouping.groupsCount})",
+                complex.toString(),
+                wide.toString(),
+                "candidates to found matches, complex: ${"%.2f".format(complex.candidates / complex.found)}, wide: ${"%.2f".format(wide.candidates / wide.found)}"
+        )
+        output.forEach { println(it) }
+        if (!signaturesResults.exists()) {
+            currentTestResultsDir.mkdirs()
+            signaturesResults.writeText(output.joinToString("\n", postfix = "\n"))
+        }
+    }
+}
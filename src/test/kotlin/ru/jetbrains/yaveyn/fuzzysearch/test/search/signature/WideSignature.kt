@@ -0,0 +1,81 @@
+package ru.jetbrains.yaveyn.fuzzysearch.test.search.signature
+
+import com.jetbrains.typofixer.search.signature.ComplexSignature
+
+/**
+ * Signature variant packed into Long: chars mask of [CharGrouping] in low bits and length in the upper [LENGTH_BITS_COUNT] bits.
+ *
+ * Chars mask has up to [MAX_CHAR_BITS_COUNT] bits instead of 25 ones of [ComplexSignature], so buckets are smaller,
+ * but ranges are bigger. Ranges are built by the same rules as the ones of [ComplexSignature].
+ * It is compared with [ComplexSignature] by [SignatureComparisonTest] only, as it gives no gain in search.
+ */
+class WideSignature(private val grouping: CharGrouping) {
+
+    init {
+        assert(grouping.bitsCount <= MAX_CHAR_BITS_COUNT)
+    }
+
+    private val flipTemplates = Array(grouping.bitsCount + 1) { bitsCount -> lazy { masksWithBitCount(bitsCount, grouping.bitsCount) } }
+
+    fun get(str: String) = combine(grouping.maskOf(str), getLength(str))
+
+    // signatures by min possible error of the words having them
+    fun getRange(str: String, maxRoundedError: Int): List<LongArray> {
+        val base = grouping.maskOf(str)
+        val length = getLength(str)
+        val range = Array(maxRoundedError + 1) { LongArray(INITIAL_CAPACITY) }
+        val sizes = IntArray(maxRoundedError + 1)
+        fun add(error: Int, signature: Long) {
+            if (sizes[error] == range[error].size) range[error] = range[error].copyOf(2 * sizes[error])
+            range[error][sizes[error]++] = signature
+        }
+
+        for (flipsCount in 0..Math.min(maxRoundedError, grouping.bitsCount)) {
+            for (flips in flipTemplates[flipsCount].value) {
+                val added = java.lang.Long.bitCount(flips and base.inv())
+                val removed = flipsCount - added
+                val mutated = base xor flips
+                for (lengthError in 0..maxRoundedError) {
+                    val error = ComplexSignature.minPossibleError(flipsCount, lengthError)
+                    if (lengthError == 0) {
+                        add(error, combine(mutated, length))
+                        continue
+                    }
+                    if (length - lengthError > 0 && added + Math.max(lengthError, removed) <= maxRoundedError) {
+                        add(error, combine(mutated, length - lengthError))
+                    }
+                    if (length + lengthError < LENGTH_UPPER_BOUND && removed + Math.max(lengthError, added) <= maxRoundedError) {
+                        add(error, combine(mutated, length + lengthError))
+                    }
+                }
+            }
+        }
+        return range.mapIndexed { error, signatures -> signatures.copyOf(sizes[error]) }
+    }
+
+    private fun getLength(str: String) = Math.min(LENGTH_UPPER_BOUND - 1, str.length)
+
+    private fun combine(mask: Long, length: Int) = (length.toLong() shl MAX_CHAR_BITS_COUNT) or mask
+
+    companion object {
+        private val LENGTH_BITS_COUNT = 7
+        private val LENGTH_UPPER_BOUND = 1 shl LENGTH_BITS_COUNT
+        val MAX_CHAR_BITS_COUNT = java.lang.Long.SIZE - LENGTH_BITS_COUNT
+
+        private val INITIAL_CAPACITY = 256
+
+        // Gosper's hack on longs
+        private fun masksWithBitCount(bitsCount: Int, maxBitsCount: Int): LongArray {
+            if (bitsCount == 0) return longArrayOf(0L)
+            val masks = ArrayList<Long>()
+            var mask = (1L shl bitsCount) - 1
+            while (mask < 1L shl maxBitsCount) {
+                masks.add(mask)
+                val lowest = mask and -mask
+                val carried = mask + lowest
+                mask = (((carried xor mask) ushr 2) / lowest) or carried
+            }
+            return masks.toLongArray()
+        }
+    }
+}